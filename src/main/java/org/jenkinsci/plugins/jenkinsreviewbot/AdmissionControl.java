@@ -0,0 +1,146 @@
+/*
+Copyright (c) 2013 VMware, Inc. All Rights Reserved.
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to
+deal in the Software without restriction, including without limitation the
+rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+sell copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+IN THE SOFTWARE.
+*/
+
+
+package org.jenkinsci.plugins.jenkinsreviewbot;
+
+import hudson.model.AbstractProject;
+import hudson.model.Computer;
+import jenkins.model.Jenkins;
+
+import org.jenkinsci.plugins.jenkinsreviewbot.util.Review;
+
+import java.util.*;
+
+/**
+ * Limits the builds one poll schedules, so that after an outage or a weekend the backlog of reviews
+ * is built over several polls instead of flooding the queue at once.
+ * <p>
+ * A poll may schedule at most the configured number of builds, a job may have at most the configured number
+ * of queued builds, and the queue may grow at most to the configured length plus the idle executors.
+ * Reviews that are not admitted are not recorded as processed, and they hold back the watermark,
+ * so the next poll finds them again.
+ */
+final class AdmissionControl {
+
+  private int budget;
+  private final int maxQueuedPerJob;
+  private final Map<AbstractProject, Integer> queued = new HashMap<AbstractProject, Integer>();
+  private int admitted = 0;
+  private int deferred = 0;
+  private Date oldestHeld = null;
+
+  /**
+   * Order in which reviews should be offered, so that the reviews waiting longest are built first.
+   */
+  static final Comparator<Review.Slim> OLDEST_FIRST = new Comparator<Review.Slim>() {
+    public int compare(Review.Slim a, Review.Slim b) {
+      long x = a.getLastUpdate() == null ? 0 : a.getLastUpdate().getTime();
+      long y = b.getLastUpdate() == null ? 0 : b.getLastUpdate().getTime();
+      return x < y ? -1 : x == y ? 0 : 1;
+    }
+  };
+
+  AdmissionControl(int maxPerPoll, int maxQueuedPerJob, int maxQueueLength) {
+    this.maxQueuedPerJob = maxQueuedPerJob;
+    budget = maxPerPoll > 0 ? maxPerPoll : Integer.MAX_VALUE;
+    if (maxQueueLength > 0) {
+      Jenkins jenkins = Jenkins.getInstance();
+      int idle = 0;
+      for (Computer c : jenkins.getComputers()) {
+        if (c.isOnline() && c.isAcceptingTasks()) idle += c.countIdle();
+      }
+      budget = Math.min(budget, Math.max(0, maxQueueLength + idle - jenkins.getQueue().getItems().length));
+    }
+  }
+
+  static AdmissionControl fromConfiguration() {
+    ReviewboardDescriptor d = ReviewboardNotifier.DESCRIPTOR;
+    return new AdmissionControl(d.getMaxBuildsPerPoll(), d.getMaxQueuedPerJob(), d.getMaxQueueLength());
+  }
+
+  /**
+   * Admits a review if all of its jobs can take a build; otherwise it is deferred to a later poll.
+   *
+   * @param lastUpdate last update of the review
+   */
+  boolean admit(Collection<? extends AbstractProject> targets, Date lastUpdate) {
+    boolean room = budget > 0;
+    for (AbstractProject target : targets) {
+      if (!room) break;
+      room = maxQueuedPerJob <= 0 || queued(target) < maxQueuedPerJob;
+    }
+    if (!room) {
+      deferred++;
+      hold(lastUpdate);
+      return false;
+    }
+    budget--;
+    admitted++;
+    for (AbstractProject target : targets) queued.put(target, queued(target) + 1);
+    return true;
+  }
+
+  /**
+   * Gives back what {@link #admit} took for a review that is not scheduled after all, e.g. because another
+   * poll claimed it first.
+   */
+  void cancel(Collection<? extends AbstractProject> targets) {
+    budget++;
+    admitted--;
+    for (AbstractProject target : targets) queued.put(target, queued(target) - 1);
+  }
+
+  private int queued(AbstractProject target) {
+    Integer n = queued.get(target);
+    if (n == null) {
+      n = Jenkins.getInstance().getQueue().getItems(target).size();
+      queued.put(target, n);
+    }
+    return n;
+  }
+
+  /**
+   * Keeps the watermark before a review that is left to a later poll for another reason,
+   * e.g. because its builds could not be scheduled.
+   */
+  void hold(Date lastUpdate) {
+    if (lastUpdate != null && (oldestHeld == null || lastUpdate.before(oldestHeld))) oldestHeld = lastUpdate;
+  }
+
+  /**
+   * @return how far the watermark may advance: the newest update seen, but not past a deferred or held review
+   */
+  Date watermark(Date newest) {
+    if (oldestHeld == null || newest == null || newest.before(oldestHeld)) return newest;
+    return new Date(oldestHeld.getTime() - 1);
+  }
+
+  int getDeferred() {
+    return deferred;
+  }
+
+  @Override
+  public String toString() {
+    return "admitted " + admitted + ", deferred " + deferred + " to the next poll";
+  }
+}
@@ -0,0 +1,295 @@
+/*
+Copyright (c) 2013 VMware, Inc. All Rights Reserved.
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to
+deal in the Software without restriction, including without limitation the
+rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+sell copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+IN THE SOFTWARE.
+*/
+
+
+package org.jenkinsci.plugins.jenkinsreviewbot;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import jenkins.model.Jenkins;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Comments waiting to be posted to Reviewboard, under <code>$JENKINS_HOME/reviewbot-outbox</code>.
+ * <p>
+ * Every comment is written to a file of its own before {@link #enqueue} returns, and the file is deleted once
+ * Reviewboard accepted the comment, so comments survive restarts and are posted at least once. Comments are posted
+ * by a small pool of background threads; a failed post is retried with exponential backoff and jitter.
+ * Comments for the same review request that are waiting at the same time (with the same ship-it and text type)
+ * are posted together, as one review. A batch is closed once its first attempt starts, so every retry posts the
+ * same review under the same dedupe key; comments arriving later start the next batch.
+ */
+class CommentOutbox {
+
+  static final int DEFAULT_THREADS = 2;
+  private static final long COALESCE_DELAY = 1000L;
+  private static final long INITIAL_RETRY_DELAY = 10 * 1000L;
+  private static final long MAX_RETRY_DELAY = 30 * 60 * 1000L;
+  // comments still failing after this long are given up
+  private static final long MAX_AGE = 7 * 24 * 60 * 60 * 1000L;
+  private static final String SUFFIX = ".comment";
+
+  private static final Logger LOGGER = Logger.getLogger(CommentOutbox.class.getName());
+  private static CommentOutbox instance = null;
+
+  private final File dir;
+  private final Poster poster;
+  private final ScheduledExecutorService pool;
+  private final long initialRetryDelay;
+  private final Random random = new Random();
+  private final AtomicLong sequence = new AtomicLong(System.currentTimeMillis());
+  // the batch of every key that still takes comments
+  private final Map<String, Batch> pending = new HashMap<String, Batch>();
+  private final Set<Batch> batches = new HashSet<Batch>();
+  private final AtomicLong delivered = new AtomicLong();
+  private final AtomicLong failures = new AtomicLong();
+
+  /**
+   * Posts a review; see {@link ReviewboardOps#postReview}.
+   */
+  interface Poster {
+    int post(String url, String msg, boolean shipIt, boolean markdown, String dedupeKey) throws IOException;
+  }
+
+  static synchronized CommentOutbox getInstance() {
+    if (instance == null) {
+      instance = new CommentOutbox(new File(Jenkins.getInstance().getRootDir(), "reviewbot-outbox"), new Poster() {
+        public int post(String url, String msg, boolean shipIt, boolean markdown, String dedupeKey)
+                throws IOException {
+          return ReviewboardOps.getInstance().postReview(ReviewboardConnection.fromConfiguration(),
+              url, msg, shipIt, markdown, dedupeKey);
+        }
+      }, DEFAULT_THREADS, INITIAL_RETRY_DELAY);
+      instance.load();
+    }
+    return instance;
+  }
+
+  CommentOutbox(File dir, Poster poster, int threads, long initialRetryDelay) {
+    this.dir = dir;
+    this.poster = poster;
+    this.initialRetryDelay = initialRetryDelay;
+    pool = Executors.newScheduledThreadPool(threads,
+        new ThreadFactoryBuilder().setNameFormat("Reviewboard comment outbox %d").setDaemon(true).build());
+  }
+
+  /**
+   * Loads the comments left by a previous run.
+   */
+  void load() {
+    File[] files = dir.listFiles();
+    if (files == null) return;
+    Arrays.sort(files);
+    for (File f : files) {
+      if (!f.getName().endsWith(SUFFIX)) continue;
+      try {
+        add(Comment.read(f));
+      } catch (IOException e) {
+        LOGGER.log(Level.WARNING, "Dropping unreadable comment " + f, e);
+        f.delete();
+      }
+    }
+  }
+
+  void enqueue(String url, String msg, boolean shipIt, boolean markdown) throws IOException {
+    if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Cannot create " + dir);
+    File file = new File(dir, String.format("%019d", sequence.incrementAndGet()) + SUFFIX);
+    Comment c = new Comment(file, url, msg, shipIt, markdown, System.currentTimeMillis());
+    c.write();
+    add(c);
+  }
+
+  private synchronized void add(Comment c) {
+    String key = c.url + (c.shipIt ? " ship-it" : "") + (c.markdown ? " markdown" : "");
+    Batch b = pending.get(key);
+    if (b == null) {
+      b = new Batch(key);
+      pending.put(key, b);
+      batches.add(b);
+      schedule(b, COALESCE_DELAY);
+    }
+    b.comments.add(c);
+  }
+
+  private void schedule(final Batch b, long delay) {
+    pool.schedule(new Runnable() {
+      public void run() {
+        deliver(b);
+      }
+    }, delay, TimeUnit.MILLISECONDS);
+  }
+
+  private void deliver(Batch b) {
+    List<Comment> sending;
+    synchronized (this) {
+      // later comments go to a new batch, so the same comments are posted as the same review however often
+      // that is attempted
+      if (pending.get(b.key) == b) pending.remove(b.key);
+      sending = b.comments;
+    }
+    Comment first = sending.get(0);
+    StringBuilder msg = new StringBuilder();
+    for (Comment c : sending) {
+      if (msg.length() > 0) msg.append("\n\n");
+      msg.append(c.msg);
+    }
+    Comment last = sending.get(sending.size() - 1);
+    String dedupeKey = first.file.getName() + ".." + last.file.getName() + "/" + sending.size();
+    int code;
+    try {
+      code = poster.post(first.url, msg.toString(), first.shipIt, first.markdown, dedupeKey);
+    } catch (Exception e) {
+      LOGGER.log(Level.FINE, "Failed to post comment to " + first.url, e);
+      code = -1;
+    }
+    boolean done = code >= 200 && code < 300;
+    if (!done && isPermanent(code)) {
+      LOGGER.warning("Reviewboard rejected comment to " + first.url + " with code " + code + ", dropping it");
+      done = true;
+    }
+    synchronized (this) {
+      if (done) {
+        delivered.addAndGet(sending.size());
+      } else {
+        failures.incrementAndGet();
+        b.attempts++;
+        // the comments of a batch are given up together, as dropping some would change the review posted
+        if (System.currentTimeMillis() - first.created > MAX_AGE) {
+          LOGGER.warning("Giving up " + sending.size() + " comment(s) to " + first.url + " after " + b.attempts
+              + " attempts");
+          done = true;
+        }
+      }
+      if (done) {
+        for (Comment c : sending) c.file.delete();
+        batches.remove(b);
+      } else {
+        schedule(b, backoff(b.attempts));
+      }
+    }
+  }
+
+  /**
+   * Client errors other than timeouts and rate limiting would fail again.
+   */
+  private static boolean isPermanent(int code) {
+    return code >= 400 && code < 500 && code != 408 && code != 429;
+  }
+
+  /**
+   * @return exponentially growing delay before the next attempt, with random jitter of +/- 50%
+   */
+  long backoff(int attempts) {
+    long base = Math.min(MAX_RETRY_DELAY, initialRetryDelay << Math.min(attempts - 1, 20));
+    synchronized (random) {
+      return base / 2 + (long) (random.nextDouble() * base);
+    }
+  }
+
+  synchronized int size() {
+    int n = 0;
+    for (Batch b : batches) n += b.comments.size();
+    return n;
+  }
+
+  void shutdown() {
+    pool.shutdownNow();
+  }
+
+  @Override
+  public String toString() {
+    return "pending=" + size() + ", delivered=" + delivered.get() + ", failed attempts=" + failures.get();
+  }
+
+  private static class Batch {
+    final String key;
+    final List<Comment> comments = new ArrayList<Comment>();
+    int attempts = 0;
+
+    Batch(String key) {
+      this.key = key;
+    }
+  }
+
+  private static class Comment {
+    final File file;
+    final String url;
+    final String msg;
+    final boolean shipIt;
+    final boolean markdown;
+    final long created;
+
+    Comment(File file, String url, String msg, boolean shipIt, boolean markdown, long created) {
+      this.file = file;
+      this.url = url;
+      this.msg = msg;
+      this.shipIt = shipIt;
+      this.markdown = markdown;
+      this.created = created;
+    }
+
+    void write() throws IOException {
+      Properties p = new Properties();
+      p.setProperty("url", url);
+      p.setProperty("msg", msg);
+      p.setProperty("shipIt", String.valueOf(shipIt));
+      p.setProperty("markdown", String.valueOf(markdown));
+      p.setProperty("created", String.valueOf(created));
+      File tmp = new File(file.getPath() + ".tmp");
+      OutputStream out = new FileOutputStream(tmp);
+      try {
+        p.store(out, null);
+      } finally {
+        out.close();
+      }
+      if (!tmp.renameTo(file)) throw new IOException("Cannot move " + tmp + " to " + file);
+    }
+
+    static Comment read(File file) throws IOException {
+      Properties p = new Properties();
+      InputStream in = new FileInputStream(file);
+      try {
+        p.load(in);
+      } finally {
+        in.close();
+      }
+      String url = p.getProperty("url");
+      String msg = p.getProperty("msg");
+      if (url == null || msg == null) throw new IOException("Incomplete comment");
+      long created;
+      try {
+        created = Long.parseLong(p.getProperty("created", "0"));
+      } catch (NumberFormatException e) {
+        created = file.lastModified();
+      }
+      return new Comment(file, url, msg, Boolean.parseBoolean(p.getProperty("shipIt")),
+          Boolean.parseBoolean(p.getProperty("markdown")), created);
+    }
+  }
+}
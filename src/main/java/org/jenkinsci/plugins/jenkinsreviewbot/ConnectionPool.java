@@ -0,0 +1,147 @@
+/*
+Copyright (c) 2013 VMware, Inc. All Rights Reserved.
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to
+deal in the Software without restriction, including without limitation the
+rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+sell copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+IN THE SOFTWARE.
+*/
+
+
+package org.jenkinsci.plugins.jenkinsreviewbot;
+
+import org.apache.commons.httpclient.ConnectionPoolTimeoutException;
+import org.apache.commons.httpclient.HostConfiguration;
+import org.apache.commons.httpclient.HttpConnection;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+import org.apache.commons.httpclient.util.IdleConnectionTimeoutThread;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The HTTP connection pool of one Reviewboard session, with gauges of how its connections are used.
+ * Connections left idle for longer than the configured timeout are closed by a shared background thread.
+ */
+class ConnectionPool extends MultiThreadedHttpConnectionManager {
+
+  private static IdleConnectionTimeoutThread evictor = null;
+
+  private final AtomicInteger leased = new AtomicInteger();
+  private final AtomicInteger waiting = new AtomicInteger();
+
+  ConnectionPool(Settings settings) {
+    configure(settings);
+    synchronized (ConnectionPool.class) {
+      if (evictor == null) {
+        evictor = new IdleConnectionTimeoutThread();
+        evictor.setName("Reviewboard idle connection evictor");
+        evictor.setTimeoutInterval(Settings.EVICTION_INTERVAL);
+        evictor.setConnectionTimeout(settings.idleTimeout);
+        evictor.start();
+      }
+      evictor.addConnectionManager(this);
+    }
+  }
+
+  void configure(Settings settings) {
+    HttpConnectionManagerParams params = getParams();
+    params.setDefaultMaxConnectionsPerHost(settings.maxPerHost);
+    params.setMaxTotalConnections(settings.maxTotal);
+    params.setConnectionTimeout(settings.connectTimeout);
+    params.setSoTimeout(settings.socketTimeout);
+    synchronized (ConnectionPool.class) {
+      if (evictor != null) evictor.setConnectionTimeout(settings.idleTimeout);
+    }
+  }
+
+  @Override
+  public HttpConnection getConnectionWithTimeout(HostConfiguration hostConfiguration, long timeout)
+          throws ConnectionPoolTimeoutException {
+    waiting.incrementAndGet();
+    try {
+      HttpConnection connection = super.getConnectionWithTimeout(hostConfiguration, timeout);
+      leased.incrementAndGet();
+      return connection;
+    } finally {
+      waiting.decrementAndGet();
+    }
+  }
+
+  @Override
+  public void releaseConnection(HttpConnection connection) {
+    super.releaseConnection(connection);
+    leased.decrementAndGet();
+  }
+
+  @Override
+  public void shutdown() {
+    synchronized (ConnectionPool.class) {
+      if (evictor != null) evictor.removeConnectionManager(this);
+    }
+    super.shutdown();
+  }
+
+  /** Connections currently handed out to requests. */
+  int getLeased() {
+    return leased.get();
+  }
+
+  /** Open connections kept in the pool for reuse. */
+  int getIdle() {
+    return Math.max(0, getConnectionsInPool() - leased.get());
+  }
+
+  /** Requests blocked until a connection is available. */
+  int getWaiting() {
+    return waiting.get();
+  }
+
+  @Override
+  public String toString() {
+    return "leased=" + getLeased() + ", idle=" + getIdle() + ", waiting=" + getWaiting();
+  }
+
+  /**
+   * Connection limits and timeouts; the timeouts are in milliseconds.
+   */
+  static class Settings {
+    static final int DEFAULT_MAX_PER_HOST = 20;
+    static final int DEFAULT_MAX_TOTAL = 40;
+    static final int DEFAULT_CONNECT_TIMEOUT = 10 * 1000;
+    static final int DEFAULT_SOCKET_TIMEOUT = 60 * 1000;
+    static final int DEFAULT_IDLE_TIMEOUT = 60 * 1000;
+    static final int EVICTION_INTERVAL = 10 * 1000;
+
+    static final Settings DEFAULT = new Settings(DEFAULT_MAX_PER_HOST, DEFAULT_MAX_TOTAL,
+        DEFAULT_CONNECT_TIMEOUT, DEFAULT_SOCKET_TIMEOUT, DEFAULT_IDLE_TIMEOUT);
+
+    final int maxPerHost;
+    final int maxTotal;
+    final int connectTimeout;
+    final int socketTimeout;
+    final int idleTimeout;
+
+    Settings(int maxPerHost, int maxTotal, int connectTimeout, int socketTimeout, int idleTimeout) {
+      this.maxPerHost = maxPerHost > 0 ? maxPerHost : DEFAULT_MAX_PER_HOST;
+      this.maxTotal = Math.max(this.maxPerHost, maxTotal);
+      this.connectTimeout = Math.max(0, connectTimeout);
+      this.socketTimeout = Math.max(0, socketTimeout);
+      this.idleTimeout = idleTimeout > 0 ? idleTimeout : DEFAULT_IDLE_TIMEOUT;
+    }
+  }
+
+}
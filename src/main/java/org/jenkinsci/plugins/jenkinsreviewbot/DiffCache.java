@@ -0,0 +1,348 @@
+/*
+Copyright (c) 2013 VMware, Inc. All Rights Reserved.
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to
+deal in the Software without restriction, including without limitation the
+rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+sell copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+IN THE SOFTWARE.
+*/
+
+
+package org.jenkinsci.plugins.jenkinsreviewbot;
+
+import hudson.Util;
+import jenkins.model.Jenkins;
+import org.apache.commons.io.FileUtils;
+
+import java.io.*;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Disk cache of downloaded diffs on the controller, under <code>$JENKINS_HOME/reviewbot-diffs</code>.
+ * <p>
+ * A diff is looked up by a key naming the server, review request and diff revision; since a revision never changes,
+ * an entry never goes stale. Contents are stored once per SHA-256 hash in <code>blobs/</code>, and every key is a
+ * small file in <code>keys/</code> holding the hash of its content. Keys unused for longer than the maximum age are
+ * evicted, and then the least recently used ones until the blobs fit in the maximum size. Blobs in use by
+ * an open {@link Entry} are not deleted, and diffs larger than the maximum size are not cached at all.
+ * Concurrent requests for a key that is not cached yet share a single download.
+ */
+class DiffCache {
+
+  static final int DEFAULT_MAX_SIZE_MB = 512;
+  static final int DEFAULT_MAX_AGE_DAYS = 7;
+  private static final long MB = 1024 * 1024;
+  private static final long DAY = 24 * 60 * 60 * 1000L;
+
+  private static final Logger LOGGER = Logger.getLogger(DiffCache.class.getName());
+  private static DiffCache instance = null;
+
+  private final File keys;
+  private final File blobs;
+  private volatile long maxBytes = DEFAULT_MAX_SIZE_MB * MB;
+  private volatile long maxAge = DEFAULT_MAX_AGE_DAYS * DAY;
+  private final ConcurrentMap<String, FutureTask<File>> downloads = new ConcurrentHashMap<String, FutureTask<File>>();
+  // blobs handed out in entries that are not closed yet, with how many of them there are
+  private final Map<String, Integer> pins = new HashMap<String, Integer>();
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  /**
+   * Writes the content of a diff that is not cached yet.
+   */
+  interface Loader {
+    void download(OutputStream out) throws IOException;
+  }
+
+  static synchronized DiffCache getInstance() {
+    if (instance == null) instance = new DiffCache(new File(Jenkins.getInstance().getRootDir(), "reviewbot-diffs"));
+    return instance;
+  }
+
+  DiffCache(File root) {
+    keys = new File(root, "keys");
+    blobs = new File(root, "blobs");
+  }
+
+  /**
+   * @param maxSizeMb 0 disables the cache
+   */
+  void setLimits(int maxSizeMb, int maxAgeDays) {
+    maxBytes = Math.max(0, maxSizeMb) * MB;
+    maxAge = (maxAgeDays > 0 ? maxAgeDays : DEFAULT_MAX_AGE_DAYS) * DAY;
+  }
+
+  boolean isEnabled() {
+    return maxBytes > 0;
+  }
+
+  /**
+   * @return the diff for the key, downloading it with the loader if it is not cached; the file of the entry must
+   * only be read, and stays in place until the entry is closed. A diff larger than the cache is not cached, but
+   * downloaded to a temporary file of its own that is deleted on close.
+   */
+  Entry get(final String key, final Loader loader) throws IOException {
+    for (int attempt = 0; attempt < 3; attempt++) {
+      Entry cached = lookup(key);
+      if (cached != null) {
+        hits.incrementAndGet();
+        return cached;
+      }
+      FutureTask<File> task = new FutureTask<File>(new Callable<File>() {
+        public File call() throws IOException {
+          File again = lookupFile(key); // another download may have completed before this one was registered
+          return again != null ? again : store(key, loader);
+        }
+      });
+      FutureTask<File> running = downloads.putIfAbsent(key, task);
+      boolean mine = running == null;
+      if (mine) {
+        running = task;
+        try {
+          task.run();
+        } finally {
+          downloads.remove(key, task);
+        }
+      }
+      File file = await(key, running);
+      if (isTemporary(file)) {
+        // too large to cache; the temporary file belongs to the thread that downloaded it
+        return new Entry(mine ? file : download(loader, sha256()), false);
+      }
+      Entry entry = pin(file);
+      if (entry != null) return entry;
+      // evicted before it could be pinned, try again
+    }
+    misses.incrementAndGet();
+    return new Entry(download(loader, sha256()), false);
+  }
+
+  private static File await(String key, FutureTask<File> running) throws IOException {
+    try {
+      return running.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for diff " + key);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) throw (IOException) cause;
+      if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+      throw new IOException("Failed to download diff " + key, cause);
+    }
+  }
+
+  private File keyFile(String key) {
+    return new File(keys, Util.getDigestOf(key));
+  }
+
+  private static boolean isTemporary(File f) {
+    return f.getName().endsWith(".tmp");
+  }
+
+  private synchronized Entry lookup(String key) throws IOException {
+    File blob = lookupFile(key);
+    return blob != null ? pin(blob) : null;
+  }
+
+  private File lookupFile(String key) throws IOException {
+    File k = keyFile(key);
+    if (!k.exists()) return null;
+    File blob;
+    try {
+      blob = new File(blobs, FileUtils.readFileToString(k).trim());
+    } catch (FileNotFoundException e) {
+      return null; // evicted just now
+    }
+    if (!blob.exists()) return null;
+    k.setLastModified(System.currentTimeMillis());
+    return blob;
+  }
+
+  /**
+   * Keeps the blob from being evicted until the returned entry is closed.
+   * @return null if the blob has been evicted already
+   */
+  private synchronized Entry pin(File blob) {
+    if (!blob.exists()) return null;
+    Integer n = pins.get(blob.getName());
+    pins.put(blob.getName(), n == null ? 1 : n + 1);
+    return new Entry(blob, true);
+  }
+
+  private synchronized void unpin(File blob) {
+    Integer n = pins.get(blob.getName());
+    if (n == null || n <= 1) pins.remove(blob.getName());
+    else pins.put(blob.getName(), n - 1);
+  }
+
+  /**
+   * @return the blob, or the temporary file with the content if it is larger than the cache
+   */
+  private File store(String key, Loader loader) throws IOException {
+    misses.incrementAndGet();
+    FileUtils.forceMkdir(keys);
+    MessageDigest digest = sha256();
+    File tmp = download(loader, digest);
+    if (tmp.length() > maxBytes) return tmp;
+    String hash = Util.toHexString(digest.digest());
+    File blob = new File(blobs, hash);
+    try {
+      synchronized (this) {
+        if (!blob.exists() && !tmp.renameTo(blob)) throw new IOException("Cannot move " + tmp + " to " + blob);
+        File k = keyFile(key);
+        FileUtils.writeStringToFile(k, hash);
+        evict(k);
+      }
+    } finally {
+      tmp.delete();
+    }
+    return blob;
+  }
+
+  private File download(Loader loader, MessageDigest digest) throws IOException {
+    FileUtils.forceMkdir(blobs);
+    File tmp = File.createTempFile("download", ".tmp", blobs);
+    boolean done = false;
+    try {
+      OutputStream out = new DigestOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)), digest);
+      try {
+        loader.download(out);
+      } finally {
+        out.close();
+      }
+      done = true;
+      return tmp;
+    } finally {
+      if (!done) tmp.delete();
+    }
+  }
+
+  private static MessageDigest sha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new Error(e);
+    }
+  }
+
+  /**
+   * Drops the keys unused for longer than the maximum age, then the least recently used keys until the
+   * referenced blobs fit in the maximum size, and finally the blobs no key refers to any more, unless an entry
+   * still holds them.
+   */
+  synchronized void evict() {
+    evict(null);
+  }
+
+  /**
+   * @param keep a key that is kept in any case, e.g. the one stored just now
+   */
+  private synchronized void evict(File keep) {
+    File[] keyFiles = keys.listFiles();
+    if (keyFiles == null) return;
+    long now = System.currentTimeMillis();
+    List<File> live = new ArrayList<File>();
+    for (File k : keyFiles) {
+      if (k.equals(keep)) continue;
+      if (now - k.lastModified() > maxAge) k.delete();
+      else live.add(k);
+    }
+    Collections.sort(live, new Comparator<File>() {
+      public int compare(File a, File b) {
+        long x = a.lastModified(), y = b.lastModified();
+        return x < y ? 1 : x == y ? 0 : -1; // most recently used first
+      }
+    });
+    if (keep != null && keep.exists()) live.add(0, keep);
+    Set<String> referenced = new HashSet<String>();
+    long total = 0;
+    for (File k : live) {
+      try {
+        String hash = FileUtils.readFileToString(k).trim();
+        long size = new File(blobs, hash).length();
+        if (!referenced.contains(hash) && total + size > maxBytes && !k.equals(keep)) {
+          k.delete();
+          continue;
+        }
+        if (referenced.add(hash)) total += size;
+      } catch (IOException e) {
+        LOGGER.log(Level.FINE, "Dropping unreadable diff cache key " + k, e);
+        k.delete();
+      }
+    }
+    File[] blobFiles = blobs.listFiles();
+    if (blobFiles == null) return;
+    for (File b : blobFiles) {
+      if (isTemporary(b)) {
+        // downloads in progress and diffs too large to cache; only those left behind by a crash get this old
+        if (now - b.lastModified() > maxAge) b.delete();
+      } else if (!referenced.contains(b.getName()) && !pins.containsKey(b.getName())) {
+        b.delete();
+      }
+    }
+  }
+
+  /**
+   * A diff handed out by {@link #get}.
+   */
+  class Entry implements Closeable {
+    private final File file;
+    private final boolean cached;
+    private boolean closed = false;
+
+    private Entry(File file, boolean cached) {
+      this.file = file;
+      this.cached = cached;
+    }
+
+    File getFile() {
+      return file;
+    }
+
+    /**
+     * @return false if the diff was too large to cache
+     */
+    boolean isCached() {
+      return cached;
+    }
+
+    public void close() {
+      synchronized (DiffCache.this) {
+        if (closed) return;
+        closed = true;
+        if (cached) unpin(file);
+        else file.delete();
+      }
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "hits=" + hits.get() + ", misses=" + misses.get();
+  }
+
+}
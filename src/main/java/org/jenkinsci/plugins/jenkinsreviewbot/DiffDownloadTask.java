@@ -0,0 +1,87 @@
+/*
+Copyright (c) 2013 VMware, Inc. All Rights Reserved.
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to
+deal in the Software without restriction, including without limitation the
+rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+sell copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+IN THE SOFTWARE.
+*/
+
+
+package org.jenkinsci.plugins.jenkinsreviewbot;
+
+import hudson.FilePath;
+import hudson.remoting.VirtualChannel;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.TeeOutputStream;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Downloads a raw diff straight from Reviewboard into a file on the machine the file is on, typically an agent,
+ * so that the diff doesn't have to be relayed through the controller.
+ * The request is authenticated with the cookie of a Reviewboard session the controller opened for this download
+ * alone, and logs out once the task is over, so the cookie is of no use afterwards; the session the controller
+ * uses for its own requests never leaves it. The request is sent by the agent directly, without the rate limits,
+ * circuit breaker and retries of {@link RequestGuard} and {@link RequestPolicy}.
+ * While the diff is written, it is also copied to the given (usually remote) archive stream.
+ */
+class DiffDownloadTask implements FilePath.FileCallable<Integer> {
+  private static final long serialVersionUID = 1L;
+
+  private final String rawDiffUrl;
+  private final String cookie;
+  private final int connectTimeout;
+  private final int readTimeout;
+  private final OutputStream archive;
+
+  DiffDownloadTask(String rawDiffUrl, String cookie, int connectTimeout, int readTimeout, OutputStream archive) {
+    this.rawDiffUrl = rawDiffUrl;
+    this.cookie = cookie;
+    this.connectTimeout = connectTimeout;
+    this.readTimeout = readTimeout;
+    this.archive = archive;
+  }
+
+  /**
+   * @return the HTTP status code; the file is only written if it is 200
+   */
+  public Integer invoke(File diff, VirtualChannel channel) throws IOException, InterruptedException {
+    HttpURLConnection con = (HttpURLConnection) new URL(rawDiffUrl).openConnection();
+    con.setConnectTimeout(connectTimeout);
+    con.setReadTimeout(readTimeout);
+    con.setInstanceFollowRedirects(false);
+    con.setRequestProperty("Accept", "text/x-patch");
+    con.setRequestProperty("Cookie", cookie);
+    try {
+      int status = con.getResponseCode();
+      if (status != HttpURLConnection.HTTP_OK) return status;
+      InputStream in = con.getInputStream();
+      OutputStream out = new TeeOutputStream(new BufferedOutputStream(new FileOutputStream(diff)), archive);
+      try {
+        IOUtils.copy(in, out);
+      } finally {
+        in.close();
+        out.close();
+      }
+      return status;
+    } finally {
+      con.disconnect();
+    }
+  }
+}
@@ -0,0 +1,139 @@
+/*
+Copyright (c) 2013 VMware, Inc. All Rights Reserved.
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to
+deal in the Software without restriction, including without limitation the
+rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+sell copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+IN THE SOFTWARE.
+*/
+
+
+package org.jenkinsci.plugins.jenkinsreviewbot;
+
+import org.jenkinsci.plugins.jenkinsreviewbot.util.CircuitBreaker;
+import org.jenkinsci.plugins.jenkinsreviewbot.util.TokenBucket;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+/**
+ * Protects one Reviewboard server from the plugin: requests are paced by separate read and write token buckets,
+ * shared by every session with the server, and a circuit breaker stops them altogether while the server
+ * keeps failing or answering slowly.
+ */
+class RequestGuard {
+
+  private final String server;
+  private final TokenBucket reads;
+  private final TokenBucket writes;
+  private final CircuitBreaker breaker;
+
+  RequestGuard(String server, Settings settings) {
+    this.server = server;
+    this.reads = new TokenBucket(settings.readRate, settings.burst);
+    this.writes = new TokenBucket(settings.writeRate, settings.burst);
+    this.breaker = new CircuitBreaker(settings.failureThreshold, settings.slowCall, settings.openDuration);
+  }
+
+  void configure(Settings settings) {
+    reads.configure(settings.readRate, settings.burst);
+    writes.configure(settings.writeRate, settings.burst);
+    breaker.configure(settings.failureThreshold, settings.slowCall, settings.openDuration);
+  }
+
+  /**
+   * Waits for a token and checks the breaker; every successful call must be followed by {@link #after}.
+   */
+  void before(boolean write) throws IOException {
+    before(write, Long.MAX_VALUE);
+  }
+
+  /**
+   * Like {@link #before(boolean)}, but fails at once, without taking a token, if none will be free
+   * before the deadline.
+   * @param deadline time by which the request has to be sent, <code>Long.MAX_VALUE</code> for none
+   */
+  void before(boolean write, long deadline) throws IOException {
+    long maxWait = deadline == Long.MAX_VALUE ? Long.MAX_VALUE : deadline - System.currentTimeMillis();
+    boolean acquired;
+    try {
+      acquired = (write ? writes : reads).acquire(Math.max(0, maxWait));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for a Reviewboard request slot");
+    }
+    if (!acquired) {
+      throw new RequestPolicy.DeadlineExceededException(
+          "No " + (write ? "write" : "read") + " slot for Reviewboard at " + server + " before the deadline");
+    }
+    breaker.check(System.currentTimeMillis(), "Reviewboard at " + server);
+  }
+
+  /**
+   * Records the outcome of a request.
+   * @param failed whether the request threw or the server answered with an error of its own
+   * @param latency ms the request took
+   */
+  void after(boolean failed, long latency) {
+    if (failed) breaker.onFailure(System.currentTimeMillis());
+    else breaker.onSuccess(latency, System.currentTimeMillis());
+  }
+
+  /**
+   * Records that a request was given up by its caller, which says nothing about the server.
+   */
+  void abandoned() {
+    breaker.onAbandoned();
+  }
+
+  CircuitBreaker.State getState() {
+    return breaker.getState();
+  }
+
+  @Override
+  public String toString() {
+    return "reads " + reads + "; writes " + writes + "; breaker " + breaker;
+  }
+
+  /**
+   * Rates are in requests per second, zero meaning unlimited; durations are in milliseconds.
+   */
+  static class Settings {
+    static final int DEFAULT_BURST = 10;
+    static final int DEFAULT_FAILURE_THRESHOLD = 5;
+    static final int DEFAULT_OPEN_DURATION = 60 * 1000;
+
+    static final Settings DEFAULT = new Settings(0, 0, DEFAULT_BURST, DEFAULT_FAILURE_THRESHOLD, 0,
+        DEFAULT_OPEN_DURATION);
+
+    final double readRate;
+    final double writeRate;
+    final int burst;
+    final int failureThreshold;
+    final long slowCall;
+    final long openDuration;
+
+    Settings(double readRate, double writeRate, int burst, int failureThreshold, long slowCall, long openDuration) {
+      this.readRate = Math.max(0, readRate);
+      this.writeRate = Math.max(0, writeRate);
+      this.burst = burst > 0 ? burst : DEFAULT_BURST;
+      this.failureThreshold = Math.max(0, failureThreshold);
+      this.slowCall = Math.max(0, slowCall);
+      this.openDuration = openDuration > 0 ? openDuration : DEFAULT_OPEN_DURATION;
+    }
+  }
+
+}
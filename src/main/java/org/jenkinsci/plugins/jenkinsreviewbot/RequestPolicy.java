@@ -0,0 +1,445 @@
+/*
+Copyright (c) 2013 VMware, Inc. All Rights Reserved.
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to
+deal in the Software without restriction, including without limitation the
+rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+sell copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+IN THE SOFTWARE.
+*/
+
+
+package org.jenkinsci.plugins.jenkinsreviewbot;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.commons.httpclient.ConnectTimeoutException;
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HttpMethod;
+import org.jenkinsci.plugins.jenkinsreviewbot.util.CircuitBreaker;
+
+import javax.net.ssl.SSLException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * How requests to Reviewboard are bounded in time, retried and hedged.
+ * <p>
+ * Every operation has a deadline that covers all of its attempts; the socket timeout of each attempt is cut down
+ * to the time that is left, and an attempt that the server's rate limit would hold back past it fails at once.
+ * Reads are retried with exponential backoff after I/O errors, server errors, 408 and 429,
+ * honouring <code>Retry-After</code>. Writes are not idempotent, so they are only retried when the caller can
+ * find out whether an earlier attempt got through after all, see {@link Verifier}. Reads may also be hedged:
+ * when the first attempt has not been answered within the hedge delay, a second one is sent, and whichever is
+ * answered first is used.
+ * <p>
+ * Downloads whose body is streamed by the caller after the answer, such as raw diffs, are neither hedged nor
+ * have their socket timeout cut: the deadline only decides whether another attempt is started, so a large diff
+ * that is still arriving is not cut off.
+ * <p>
+ * The outcome of every attempt is logged at FINE, and the latest ones are kept for the configuration page.
+ */
+class RequestPolicy {
+
+  private static final Logger LOGGER = Logger.getLogger(RequestPolicy.class.getName());
+  static final int HISTORY_SIZE = 50;
+  private static final long MAX_BACKOFF = 30 * 1000;
+
+  private static final ExecutorService HEDGES = Executors.newCachedThreadPool(
+      new ThreadFactoryBuilder().setNameFormat("Reviewboard hedged request %d").setDaemon(true).build());
+
+  private volatile Settings settings;
+  private final Random random = new Random();
+  private final LinkedList<String> history = new LinkedList<String>();
+  private final AtomicLong attempts = new AtomicLong();
+  private final AtomicLong retries = new AtomicLong();
+  private final AtomicLong hedged = new AtomicLong();
+  private final AtomicLong hedgesWon = new AtomicLong();
+  private final AtomicLong deadlinesExceeded = new AtomicLong();
+
+  /**
+   * Creates the method of one attempt; every attempt gets a new one.
+   */
+  interface Request {
+    HttpMethod create();
+  }
+
+  /**
+   * Finds out whether a write that failed in an unclear way, e.g. with a timeout, was carried out anyway.
+   */
+  interface Verifier {
+    boolean delivered() throws IOException;
+  }
+
+  /**
+   * Thrown when an operation has used up its deadline.
+   */
+  static class DeadlineExceededException extends IOException {
+    DeadlineExceededException(String message) {
+      super(message);
+    }
+  }
+
+  RequestPolicy(Settings settings) {
+    this.settings = settings;
+  }
+
+  void configure(Settings settings) {
+    this.settings = settings;
+  }
+
+  /**
+   * Sends a read, retrying and hedging it as configured.
+   * @param target names the operation in the diagnostics, usually the URL
+   * @return the method of the attempt that was used, answered but possibly with an error status;
+   * the caller must release its connection
+   */
+  HttpMethod read(ReviewboardSession session, String target, Request request) throws IOException {
+    return read(session, target, request, false);
+  }
+
+  /**
+   * Sends a read whose answer is streamed, retrying it as configured but without hedging it or bounding
+   * the time the body takes to arrive.
+   * @see #read(ReviewboardSession, String, Request)
+   */
+  HttpMethod download(ReviewboardSession session, String target, Request request) throws IOException {
+    return read(session, target, request, true);
+  }
+
+  private HttpMethod read(ReviewboardSession session, String target, Request request, boolean streamed)
+          throws IOException {
+    Settings s = settings;
+    long deadline = s.readDeadline > 0 ? now() + s.readDeadline : Long.MAX_VALUE;
+    for (int attempt = 1; ; attempt++) {
+      HttpMethod method = null;
+      IOException failure = null;
+      try {
+        method = s.hedgeDelay > 0 && !streamed
+            ? hedge(session, target, request, attempt, deadline, s.hedgeDelay)
+            : send(session, target, request.create(), attempt, deadline, !streamed);
+      } catch (IOException e) {
+        if (!isTransient(e)) throw e;
+        failure = e;
+      }
+      if (failure == null && !isTransient(method.getStatusCode())) return method;
+      long delay = backoff(attempt, method, s);
+      if (attempt >= s.maxAttempts || giveUp(delay, deadline)) {
+        if (failure != null) throw failure;
+        return method;
+      }
+      if (method != null) method.releaseConnection();
+      pause(delay);
+    }
+  }
+
+  /**
+   * Sends a write. Without a verifier it is sent once, whatever happens.
+   * @param target names the operation in the diagnostics, usually the URL
+   * @return the HTTP status; 200 if the verifier found that an earlier attempt was carried out
+   */
+  int write(ReviewboardSession session, String target, Request request, Verifier verifier) throws IOException {
+    Settings s = settings;
+    long deadline = s.writeDeadline > 0 ? now() + s.writeDeadline : Long.MAX_VALUE;
+    int maxAttempts = verifier != null ? s.maxAttempts : 1;
+    for (int attempt = 1; ; attempt++) {
+      HttpMethod method = null;
+      IOException failure = null;
+      int status = -1;
+      long delay;
+      try {
+        method = send(session, target, request.create(), attempt, deadline, true);
+        status = method.getStatusCode();
+      } catch (IOException e) {
+        if (!isTransient(e)) throw e;
+        failure = e;
+      } finally {
+        delay = backoff(attempt, method, s);
+        if (method != null) method.releaseConnection();
+      }
+      if (failure == null && !isTransient(status)) return status;
+      if (attempt >= maxAttempts || giveUp(delay, deadline)) {
+        if (failure != null) throw failure;
+        return status;
+      }
+      pause(delay);
+      if (mayHaveArrived(failure, status) && delivered(verifier, target)) {
+        record(target, attempt + 1, "already delivered", 0);
+        return 200;
+      }
+    }
+  }
+
+  private static boolean delivered(Verifier verifier, String target) throws IOException {
+    try {
+      return verifier.delivered();
+    } catch (RuntimeException e) {
+      throw new IOException("Could not find out whether " + target + " was delivered", e);
+    }
+  }
+
+  /**
+   * @param cutTimeout whether the socket timeout should end with the deadline
+   */
+  private HttpMethod send(ReviewboardSession session, String target, HttpMethod method, int attempt, long deadline,
+                          boolean cutTimeout) throws IOException {
+    long left = deadline - now();
+    if (left <= 0) {
+      deadlinesExceeded.incrementAndGet();
+      throw new DeadlineExceededException(method.getName() + " " + target + " did not complete in time");
+    }
+    int socketTimeout = session.getSocketTimeout();
+    if (cutTimeout && deadline != Long.MAX_VALUE && (socketTimeout == 0 || left < socketTimeout)) {
+      method.getParams().setSoTimeout((int) left);
+    }
+    long start = now();
+    try {
+      int status = session.execute(method, deadline);
+      record(method.getName() + " " + target, attempt, "HTTP " + status, now() - start);
+      return method;
+    } catch (IOException e) {
+      if (e instanceof DeadlineExceededException) deadlinesExceeded.incrementAndGet();
+      method.releaseConnection();
+      record(method.getName() + " " + target, attempt, e.toString(), now() - start);
+      throw e;
+    }
+  }
+
+  private HttpMethod hedge(ReviewboardSession session, String target, Request request, int attempt, long deadline,
+                           long hedgeDelay) throws IOException {
+    CompletionService<Attempt> done = new ExecutorCompletionService<Attempt>(HEDGES);
+    Attempt first = new Attempt(session, target, request, attempt, deadline);
+    Attempt second = null;
+    Attempt winner = null;
+    done.submit(first);
+    try {
+      Future<Attempt> f = done.poll(hedgeDelay, TimeUnit.MILLISECONDS);
+      if (f != null) {
+        winner = result(f);
+      } else {
+        hedged.incrementAndGet();
+        second = new Attempt(session, target + " (hedged)", request, attempt, deadline);
+        done.submit(second);
+        winner = result(done.take());
+        // the first answer may be an error, while the other attempt might still succeed
+        if (!winner.succeeded()) winner = result(done.take());
+        if (winner == second && winner.succeeded()) hedgesWon.incrementAndGet();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for " + target);
+    } finally {
+      if (first != winner) first.abandon();
+      if (second != null && second != winner) second.abandon();
+    }
+    if (winner.failure != null) throw winner.failure;
+    return winner.method;
+  }
+
+  private static Attempt result(Future<Attempt> f) throws IOException, InterruptedException {
+    try {
+      return f.get();
+    } catch (ExecutionException e) {
+      throw new IOException(e.getCause());
+    }
+  }
+
+  /**
+   * One of the concurrent attempts of a hedged read. An attempt that is not used is aborted, or has its
+   * connection released when it completes.
+   */
+  private class Attempt implements Callable<Attempt> {
+    private final ReviewboardSession session;
+    private final String target;
+    private final Request request;
+    private final int number;
+    private final long deadline;
+    private HttpMethod method;
+    private IOException failure;
+    private boolean finished = false;
+    private boolean abandoned = false;
+
+    Attempt(ReviewboardSession session, String target, Request request, int number, long deadline) {
+      this.session = session;
+      this.target = target;
+      this.request = request;
+      this.number = number;
+      this.deadline = deadline;
+    }
+
+    public Attempt call() {
+      HttpMethod m = request.create();
+      synchronized (this) {
+        if (abandoned) return this;
+        method = m;
+      }
+      IOException e = null;
+      try {
+        send(session, target, m, number, deadline, true);
+      } catch (IOException x) {
+        e = x;
+      }
+      synchronized (this) {
+        failure = e;
+        finished = true;
+        if (abandoned && failure == null) m.releaseConnection();
+      }
+      return this;
+    }
+
+    synchronized boolean succeeded() {
+      return failure == null && method != null && !isTransient(method.getStatusCode());
+    }
+
+    synchronized void abandon() {
+      abandoned = true;
+      if (method == null) return;
+      if (!finished) method.abort();
+      else if (failure == null) method.releaseConnection();
+    }
+  }
+
+  /**
+   * @return exponentially growing delay before the next attempt, with random jitter of +/- 50%,
+   * or longer if the server asked for it
+   */
+  private long backoff(int attempt, HttpMethod method, Settings s) {
+    long base = Math.min(MAX_BACKOFF, s.backoff << Math.min(attempt - 1, 16));
+    long delay = base / 2 + (long) (random.nextDouble() * base);
+    Header retryAfter = method != null ? method.getResponseHeader("Retry-After") : null;
+    if (retryAfter != null) {
+      try {
+        delay = Math.max(delay, Long.parseLong(retryAfter.getValue().trim()) * 1000);
+      } catch (NumberFormatException e) {
+        // an HTTP date; the backoff will do
+      }
+    }
+    return delay;
+  }
+
+  private boolean giveUp(long delay, long deadline) {
+    if (now() + delay < deadline) return false;
+    deadlinesExceeded.incrementAndGet();
+    return true;
+  }
+
+  private void pause(long delay) throws InterruptedIOException {
+    retries.incrementAndGet();
+    try {
+      Thread.sleep(delay);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting to retry a Reviewboard request");
+    }
+  }
+
+  /**
+   * Server errors, timeouts and rate limiting may go away; other answers would be the same again.
+   */
+  static boolean isTransient(int status) {
+    return status == 408 || status == 429 || status == 500 || status == 502 || status == 503 || status == 504;
+  }
+
+  /**
+   * I/O errors are worth another try, unless the circuit breaker is open, the deadline is over,
+   * the thread was interrupted, or the error would only come again: an unknown host or a failed TLS handshake.
+   */
+  static boolean isTransient(IOException e) {
+    return !(e instanceof CircuitBreaker.OpenException) && !(e instanceof DeadlineExceededException)
+        && !(e instanceof UnknownHostException) && !(e instanceof SSLException)
+        && !Thread.currentThread().isInterrupted();
+  }
+
+  /**
+   * A write that could not connect, or that the server turned away, was not carried out.
+   */
+  private static boolean mayHaveArrived(IOException failure, int status) {
+    if (failure != null) return !(failure instanceof ConnectException || failure instanceof ConnectTimeoutException);
+    return status != 429 && status != 503;
+  }
+
+  private void record(String target, int attempt, String outcome, long latency) {
+    attempts.incrementAndGet();
+    String line = String.format("%tT %s #%d: %s in %d ms", new Date(), target, attempt, outcome, latency);
+    LOGGER.fine(line);
+    synchronized (history) {
+      history.addLast(line);
+      if (history.size() > HISTORY_SIZE) history.removeFirst();
+    }
+  }
+
+  /**
+   * @return the outcomes of the latest attempts, oldest first
+   */
+  List<String> getHistory() {
+    synchronized (history) {
+      return new ArrayList<String>(history);
+    }
+  }
+
+  long now() {
+    return System.currentTimeMillis();
+  }
+
+  @Override
+  public String toString() {
+    return attempts + " attempts, " + retries + " retries, " + hedged + " hedged (" + hedgesWon + " won by the hedge), "
+        + deadlinesExceeded + " deadlines exceeded";
+  }
+
+  /**
+   * Durations are in milliseconds; a deadline or hedge delay of 0 disables it.
+   */
+  static class Settings {
+    static final int DEFAULT_MAX_ATTEMPTS = 3;
+    static final int DEFAULT_BACKOFF = 500;
+    static final int DEFAULT_READ_DEADLINE = 2 * 60 * 1000;
+    static final int DEFAULT_WRITE_DEADLINE = 2 * 60 * 1000;
+
+    static final Settings DEFAULT = new Settings(DEFAULT_MAX_ATTEMPTS, DEFAULT_BACKOFF,
+        DEFAULT_READ_DEADLINE, DEFAULT_WRITE_DEADLINE, 0);
+
+    final int maxAttempts;
+    final long backoff;
+    final long readDeadline;
+    final long writeDeadline;
+    final long hedgeDelay;
+
+    Settings(int maxAttempts, long backoff, long readDeadline, long writeDeadline, long hedgeDelay) {
+      this.maxAttempts = Math.max(1, maxAttempts);
+      this.backoff = backoff > 0 ? backoff : DEFAULT_BACKOFF;
+      this.readDeadline = Math.max(0, readDeadline);
+      this.writeDeadline = Math.max(0, writeDeadline);
+      this.hedgeDelay = Math.max(0, hedgeDelay);
+    }
+  }
+
+}
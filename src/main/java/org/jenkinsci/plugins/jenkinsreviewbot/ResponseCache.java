@@ -0,0 +1,120 @@
+/*
+Copyright (c) 2013 VMware, Inc. All Rights Reserved.
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to
+deal in the Software without restriction, including without limitation the
+rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+sell copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+IN THE SOFTWARE.
+*/
+
+package org.jenkinsci.plugins.jenkinsreviewbot;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size-bounded LRU cache of decoded API responses, keyed by request URL.
+ * Entries remember the ETag and Last-Modified headers of the response they were decoded from,
+ * so that the next request for the same URL can be made conditional and a 304 answered from the cache.
+ * Cached objects are shared between callers and must not be modified.
+ */
+class ResponseCache {
+
+  static final int DEFAULT_SIZE = 500;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private int maxSize;
+  private final LinkedHashMap<String, Cached> entries = new LinkedHashMap<String, Cached>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Cached> eldest) {
+      return size() > maxSize;
+    }
+  };
+
+  ResponseCache(int maxSize) {
+    this.maxSize = maxSize;
+  }
+
+  static class Cached {
+    final String etag;
+    final String lastModified;
+    final Object value;
+
+    Cached(String etag, String lastModified, Object value) {
+      this.etag = etag;
+      this.lastModified = lastModified;
+      this.value = value;
+    }
+  }
+
+  synchronized Cached get(String url, Class<?> clazz) {
+    Cached e = entries.get(url);
+    return e != null && clazz.isInstance(e.value) ? e : null;
+  }
+
+  /**
+   * Remembers a freshly downloaded response. Responses without validators can't be revalidated, so they are not kept.
+   */
+  void put(String url, String etag, String lastModified, Object value) {
+    misses.incrementAndGet();
+    synchronized (this) {
+      if (maxSize <= 0) return;
+      if (etag == null && lastModified == null) entries.remove(url);
+      else entries.put(url, new Cached(etag, lastModified, value));
+    }
+  }
+
+  /**
+   * Records that the server confirmed (304) the cached response is still current.
+   */
+  void hit() {
+    hits.incrementAndGet();
+  }
+
+  synchronized void setMaxSize(int maxSize) {
+    this.maxSize = maxSize;
+    if (maxSize <= 0) {
+      entries.clear();
+    } else {
+      Iterator<String> it = entries.keySet().iterator();
+      while (entries.size() > maxSize && it.hasNext()) {
+        it.next();
+        it.remove();
+      }
+    }
+  }
+
+  synchronized int size() {
+    return entries.size();
+  }
+
+  long getHits() {
+    return hits.get();
+  }
+
+  long getMisses() {
+    return misses.get();
+  }
+
+  @Override
+  public String toString() {
+    return size() + " entries, " + getHits() + " hits, " + getMisses() + " misses";
+  }
+
+}
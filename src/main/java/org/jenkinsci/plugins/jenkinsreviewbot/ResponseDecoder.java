@@ -0,0 +1,89 @@
+/*
+Copyright (c) 2013 VMware, Inc. All Rights Reserved.
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to
+deal in the Software without restriction, including without limitation the
+rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+sell copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+IN THE SOFTWARE.
+*/
+
+package org.jenkinsci.plugins.jenkinsreviewbot;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Unmarshaller;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Turns a Reviewboard XML response body into one of the {@link ReviewboardOps} response classes.
+ */
+abstract class ResponseDecoder {
+
+  static final ResponseDecoder JAXB = new JaxbDecoder();
+  static final ResponseDecoder STREAMING = new StaxResponseDecoder(JAXB);
+
+  abstract <T> T decode(InputStream in, Class<T> clazz) throws IOException;
+
+  /**
+   * JAXB based decoder. The (expensive) context is built once per class, and unmarshallers,
+   * which are not thread-safe, are pooled and reused.
+   */
+  static class JaxbDecoder extends ResponseDecoder {
+    private final ConcurrentMap<Class<?>, JAXBContext> contexts = new ConcurrentHashMap<Class<?>, JAXBContext>();
+    private final ConcurrentMap<Class<?>, Queue<Unmarshaller>> pools =
+        new ConcurrentHashMap<Class<?>, Queue<Unmarshaller>>();
+
+    @Override
+    <T> T decode(InputStream in, Class<T> clazz) throws IOException {
+      Queue<Unmarshaller> pool = getPool(clazz);
+      try {
+        Unmarshaller unmarshaller = pool.poll();
+        if (unmarshaller == null) unmarshaller = getContext(clazz).createUnmarshaller();
+        T res = clazz.cast(unmarshaller.unmarshal(in));
+        pool.offer(unmarshaller);
+        return res;
+      } catch (JAXBException e) {
+        throw new IOException("Failed to unmarshal " + clazz.getSimpleName(), e);
+      }
+    }
+
+    private JAXBContext getContext(Class<?> clazz) throws JAXBException {
+      JAXBContext context = contexts.get(clazz);
+      if (context == null) {
+        context = JAXBContext.newInstance(clazz);
+        JAXBContext existing = contexts.putIfAbsent(clazz, context);
+        if (existing != null) context = existing;
+      }
+      return context;
+    }
+
+    private Queue<Unmarshaller> getPool(Class<?> clazz) {
+      Queue<Unmarshaller> pool = pools.get(clazz);
+      if (pool == null) {
+        pool = new ConcurrentLinkedQueue<Unmarshaller>();
+        Queue<Unmarshaller> existing = pools.putIfAbsent(clazz, pool);
+        if (existing != null) pool = existing;
+      }
+      return pool;
+    }
+  }
+
+}
@@ -0,0 +1,176 @@
+/*
+Copyright (c) 2013 VMware, Inc. All Rights Reserved.
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to
+deal in the Software without restriction, including without limitation the
+rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+sell copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+IN THE SOFTWARE.
+*/
+
+
+package org.jenkinsci.plugins.jenkinsreviewbot;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import hudson.model.AbstractProject;
+import hudson.model.Cause;
+import hudson.model.Computer;
+import hudson.model.ParametersAction;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Schedules the jobs that build review requests, the same way for the polling builder,
+ * the shared poller and the WebHook.
+ * <p>
+ * Builds are scheduled right away, while the comments announcing them are collected and then posted
+ * by {@link #sendNotices} over a bounded pool of threads; a comment that fails to post is only logged.
+ */
+final class ReviewDispatcher {
+
+  static final int NOTICE_CONCURRENCY = 4;
+
+  private static final Logger LOGGER = Logger.getLogger(ReviewDispatcher.class.getName());
+  private static final ThreadFactory threadFactory =
+      new ThreadFactoryBuilder().setNameFormat("Reviewboard notice %d").setDaemon(true).build();
+
+  private final ReviewboardConnection con;
+  private final Cause cause;
+  private final List<Notice> notices = new ArrayList<Notice>();
+
+  ReviewDispatcher(ReviewboardConnection con, Cause cause) {
+    this.con = con;
+    this.cause = cause;
+  }
+
+  /**
+   * Unless disabled, builds of the same review request for older diff revisions are stopped first.
+   *
+   * @param diffRevision diff revision the builds should apply, or 0 if unknown
+   * @param diffTime when that diff was uploaded, or null if unknown
+   * @param properties review properties, or null to have the builds look them up
+   * @param notice whether to post a comment on the review request announcing the builds
+   */
+  void dispatch(String url, int diffRevision, Date diffTime, Map<String, String> properties,
+                Collection<? extends AbstractProject> targets, boolean notice) {
+    if (targets.isEmpty()) return;
+    int superseded = 0;
+    if (ReviewboardNotifier.DESCRIPTOR.getCancelSupersededBuilds()) {
+      String location = new ReviewboardParameterValue("review.url", url).getLocation();
+      for (AbstractProject target : targets) superseded += SupersededBuilds.cancel(target, location, diffRevision);
+    }
+    List<ReviewboardParameterValue> values = new ArrayList<ReviewboardParameterValue>(targets.size());
+    for (AbstractProject target : targets) {
+      values.add(new ReviewboardParameterValue("review.url", url, diffRevision, diffTime, properties));
+    }
+    if (diffRevision > 0 && ReviewboardNotifier.DESCRIPTOR.getQueueOrder() == ReviewQueueSorter.Order.SMALLEST_DIFF &&
+        DiffCache.getInstance().isEnabled()) {
+      prefetchDiff(con, url, diffRevision, values);
+    }
+    Iterator<ReviewboardParameterValue> value = values.iterator();
+    for (AbstractProject target : targets) {
+      target.scheduleBuild2(target.getQuietPeriod(), cause, new ParametersAction(value.next()));
+    }
+    // the note about stopped builds also announces the new ones
+    if (superseded > 0) {
+      notices.add(new Notice(url, Messages.ReviewDispatcher_Superseded(superseded, diffRevision)));
+    } else if (notice) {
+      notices.add(new Notice(url, Messages.ReviewboardPollingBuilder_Notice()));
+    }
+  }
+
+  /**
+   * Posts the comments collected by {@link #dispatch} and waits for them.
+   *
+   * @param log where to report comments that could not be posted, or null for the system log
+   * @return the number of comments that could not be posted
+   */
+  int sendNotices(PrintStream log) throws InterruptedException {
+    if (notices.isEmpty()) return 0;
+    ExecutorService pool = Executors.newFixedThreadPool(Math.min(NOTICE_CONCURRENCY, notices.size()), threadFactory);
+    try {
+      List<Future<Boolean>> results = new ArrayList<Future<Boolean>>(notices.size());
+      for (final Notice n : notices) {
+        results.add(pool.submit(new Callable<Boolean>() {
+          public Boolean call() throws IOException {
+            return ReviewboardOps.getInstance().postComment(con, n.url, n.msg, false, false);
+          }
+        }));
+      }
+      int failed = 0;
+      for (int i = 0; i < results.size(); i++) {
+        String problem;
+        try {
+          problem = results.get(i).get() ? null : "rejected by Reviewboard";
+        } catch (ExecutionException e) {
+          problem = String.valueOf(e.getCause());
+        }
+        if (problem == null) continue;
+        failed++;
+        String msg = "Failed to post notice to " + notices.get(i).url + ": " + problem;
+        if (log != null) log.println(msg);
+        else LOGGER.warning(msg);
+      }
+      notices.clear();
+      return failed;
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  /**
+   * Downloads the diff into the diff cache in the background, so {@link ReviewQueueSorter} knows its size
+   * while the builds wait, and the builds find it there.
+   */
+  private static void prefetchDiff(final ReviewboardConnection con, final String url, final int diffRevision,
+                                   final List<ReviewboardParameterValue> values) {
+    Computer.threadPoolForRemoting.submit(new Runnable() {
+      public void run() {
+        try {
+          DiffCache.Entry entry = ReviewboardOps.getInstance().getCachedDiff(con, url, diffRevision);
+          try {
+            // the queue sorter reads the size from the parameter values, without touching the disk
+            long size = entry.getFile().length();
+            for (ReviewboardParameterValue value : values) value.setDiffSize(size);
+          } finally {
+            entry.close();
+          }
+        } catch (Exception e) {
+          LOGGER.log(Level.FINE, "Failed to prefetch diff " + diffRevision + " of " + url, e);
+        }
+      }
+    });
+  }
+
+  private static class Notice {
+    final String url;
+    final String msg;
+
+    Notice(String url, String msg) {
+      this.url = url;
+      this.msg = msg;
+    }
+  }
+}
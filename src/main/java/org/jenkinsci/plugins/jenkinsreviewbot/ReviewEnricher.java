@@ -0,0 +1,133 @@
+/*
+Copyright (c) 2013 VMware, Inc. All Rights Reserved.
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to
+deal in the Software without restriction, including without limitation the
+rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+sell copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+IN THE SOFTWARE.
+*/
+
+
+package org.jenkinsci.plugins.jenkinsreviewbot;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.jenkinsci.plugins.jenkinsreviewbot.util.Review;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Looks up diffs and reviews of every hot review request exactly once,
+ * fanning the lookups out over a bounded pool of worker threads.
+ */
+class ReviewEnricher {
+
+  static final int DEFAULT_CONCURRENCY = 4;
+
+  private static final ThreadFactory threadFactory =
+      new ThreadFactoryBuilder().setNameFormat("Reviewboard review lookup %d").setDaemon(true).build();
+
+  private final ReviewboardOps ops;
+  private final ReviewboardConnection con;
+  private final int concurrency;
+  private final AtomicInteger requests = new AtomicInteger();
+
+  ReviewEnricher(ReviewboardOps ops, ReviewboardConnection con, int concurrency) {
+    this.ops = ops;
+    this.con = con;
+    this.concurrency = concurrency > 0 ? concurrency : DEFAULT_CONCURRENCY;
+  }
+
+  int getRequests() {
+    return requests.get();
+  }
+
+  List<Review.Slim> enrich(Collection<ReviewboardOps.ReviewItem> hot) throws IOException {
+    if (hot.isEmpty()) return ImmutableList.of();
+    int threads = Math.min(concurrency, hot.size());
+    if (threads == 1) {
+      ImmutableList.Builder<Review.Slim> res = ImmutableList.builder();
+      for (ReviewboardOps.ReviewItem item : hot) {
+        Review.Slim r = enrich(item);
+        if (r != null) res.add(r);
+      }
+      return res.build();
+    }
+    ExecutorService pool = Executors.newFixedThreadPool(threads, threadFactory);
+    try {
+      List<Future<Review.Slim>> futures = new ArrayList<Future<Review.Slim>>(hot.size());
+      for (final ReviewboardOps.ReviewItem item : hot) {
+        futures.add(pool.submit(new Callable<Review.Slim>() {
+          public Review.Slim call() throws Exception { return enrich(item); }
+        }));
+      }
+      ImmutableList.Builder<Review.Slim> res = ImmutableList.builder();
+      for (Future<Review.Slim> f : futures) {
+        Review.Slim r = get(f);
+        if (r != null) res.add(r);
+      }
+      return res.build();
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  /**
+   * @return the trimmed review if it needs building, null otherwise
+   */
+  private Review.Slim enrich(ReviewboardOps.ReviewItem input) {
+    requests.incrementAndGet();
+    ReviewboardOps.Response d = ops.getResponse(con, con.getDiffsUrl(input.id), ReviewboardOps.Response.class);
+    if (d.count < 1) return null; //no diffs found
+    Date lastUploadTime = d.diffs.array.get(d.count - 1).timestamp;
+    String url = con.reviewNumberToUrl(Long.toString(input.id));
+    Review review = new Review(input.id, url, lastUploadTime, input);
+    requests.incrementAndGet();
+    ReviewboardOps.Response c = ops.getResponse(con, con.getCommentsUrl(input.id), ReviewboardOps.Response.class);
+    //no comments from this user after last diff upload; a review request nobody reviewed yet has no list at all
+    if (c.reviews != null && c.reviews.array != null) {
+      for (ReviewboardOps.Item r : c.reviews.array) {
+        if (con.getReviewboardUsername().equals(r.links.user.title) &&
+            r.timestamp.after(review.getLastUpdate())) {
+          return null;
+        }
+      }
+    }
+    return review.trim(d.count, ReviewboardOps.getProperties(input));
+  }
+
+  private static Review.Slim get(Future<Review.Slim> f) throws IOException {
+    try {
+      return f.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while looking up reviews");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+      if (cause instanceof IOException) throw (IOException) cause;
+      throw new RuntimeException(cause);
+    }
+  }
+
+}
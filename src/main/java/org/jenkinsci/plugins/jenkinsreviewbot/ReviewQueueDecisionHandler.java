@@ -0,0 +1,74 @@
+/*
+Copyright (c) 2013 VMware, Inc. All Rights Reserved.
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to
+deal in the Software without restriction, including without limitation the
+rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+sell copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+IN THE SOFTWARE.
+*/
+
+
+package org.jenkinsci.plugins.jenkinsreviewbot;
+
+import hudson.Extension;
+import hudson.model.Action;
+import hudson.model.FoldableAction;
+import hudson.model.ParameterValue;
+import hudson.model.ParametersAction;
+import hudson.model.Queue;
+import jenkins.model.Jenkins;
+
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Keeps a review build out of the queue when a build of the same review request and diff revision
+ * is already waiting there, whoever scheduled either of them (polling, the WebHook or a user).
+ * A build that doesn't name a diff revision, such as one triggered by hand, builds the latest one, so it is
+ * taken as the same as a waiting build of any revision of that review request.
+ * The causes of the duplicate are added to the waiting build instead.
+ * <p>
+ * Generic parameter comparison is not enough for this: it also compares the other parameters of the job.
+ */
+@Extension
+public class ReviewQueueDecisionHandler extends Queue.QueueDecisionHandler {
+
+  private static final Logger LOGGER = Logger.getLogger(ReviewQueueDecisionHandler.class.getName());
+
+  @Override
+  public boolean shouldSchedule(Queue.Task task, List<Action> actions) {
+    ReviewboardParameterValue review = reviewOf(actions);
+    if (review == null) return true;
+    for (Queue.Item item : Jenkins.getInstance().getQueue().getItems(task)) {
+      if (!review.isSameDiff(reviewOf(item.getActions()))) continue;
+      for (Action a : actions) {
+        if (a instanceof FoldableAction) ((FoldableAction) a).foldIntoExisting(item, task, actions);
+      }
+      LOGGER.fine("Folded " + review + " into queued build of " + task.getFullDisplayName());
+      return false;
+    }
+    return true;
+  }
+
+  private static ReviewboardParameterValue reviewOf(List<Action> actions) {
+    for (Action a : actions) {
+      if (!(a instanceof ParametersAction)) continue;
+      ParameterValue value = ((ParametersAction) a).getParameter("review.url");
+      if (value instanceof ReviewboardParameterValue) return (ReviewboardParameterValue) value;
+    }
+    return null;
+  }
+}
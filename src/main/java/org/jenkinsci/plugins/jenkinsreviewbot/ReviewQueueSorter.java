@@ -0,0 +1,173 @@
+/*
+Copyright (c) 2013 VMware, Inc. All Rights Reserved.
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to
+deal in the Software without restriction, including without limitation the
+rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+sell copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+IN THE SOFTWARE.
+*/
+
+
+package org.jenkinsci.plugins.jenkinsreviewbot;
+
+import hudson.Extension;
+import hudson.model.Action;
+import hudson.model.ParameterValue;
+import hudson.model.ParametersAction;
+import hudson.model.Queue;
+import hudson.model.queue.QueueSorter;
+
+import java.util.*;
+
+/**
+ * Orders the review builds waiting for an executor by the policy chosen in the global configuration.
+ * Other builds keep their places in the queue; review builds only swap places among themselves.
+ * Ties, and the FIFO policy, go by the time the build was queued.
+ * <p>
+ * Jenkins uses a single queue sorter, the first one installed, so this has no effect when another
+ * plugin installed its own.
+ */
+@Extension
+public class ReviewQueueSorter extends QueueSorter {
+
+  public enum Order {
+    FIFO,
+    SMALLEST_DIFF,
+    OLDEST_UPLOAD,
+    SUBMITTER_ROUND_ROBIN,
+    REPOSITORY_ROUND_ROBIN;
+
+    public String getDisplayName() {
+      switch (this) {
+        case SMALLEST_DIFF:
+          return Messages.ReviewQueueSorter_SmallestDiff();
+        case OLDEST_UPLOAD:
+          return Messages.ReviewQueueSorter_OldestUpload();
+        case SUBMITTER_ROUND_ROBIN:
+          return Messages.ReviewQueueSorter_SubmitterRoundRobin();
+        case REPOSITORY_ROUND_ROBIN:
+          return Messages.ReviewQueueSorter_RepositoryRoundRobin();
+        default:
+          return Messages.ReviewQueueSorter_Fifo();
+      }
+    }
+  }
+
+  @Override
+  public void sortBuildableItems(List<Queue.BuildableItem> items) {
+    Order order = ReviewboardNotifier.DESCRIPTOR.getQueueOrder();
+    if (order == Order.FIFO) return;
+    List<Integer> positions = new ArrayList<Integer>();
+    List<Entry> reviews = new ArrayList<Entry>();
+    for (int i = 0; i < items.size(); i++) {
+      ReviewboardParameterValue review = reviewOf(items.get(i).getActions());
+      if (review == null) continue;
+      positions.add(i);
+      reviews.add(new Entry(items.get(i), review));
+    }
+    if (reviews.size() < 2) return;
+    sort(reviews, order);
+    for (int i = 0; i < positions.size(); i++) items.set(positions.get(i), reviews.get(i).item);
+  }
+
+  static void sort(List<Entry> reviews, Order order) {
+    Collections.sort(reviews, BY_QUEUE_TIME);
+    switch (order) {
+      case SMALLEST_DIFF:
+        for (Entry e : reviews) e.rank = e.diffSize();
+        break;
+      case OLDEST_UPLOAD:
+        for (Entry e : reviews) e.rank = e.diffTime();
+        break;
+      case SUBMITTER_ROUND_ROBIN:
+        rankRoundRobin(reviews, "REVIEW_USER");
+        break;
+      case REPOSITORY_ROUND_ROBIN:
+        rankRoundRobin(reviews, "REVIEW_REPOSITORY");
+        break;
+      default:
+        return;
+    }
+    Collections.sort(reviews, BY_RANK); // stable, so ties stay in queue order
+  }
+
+  /**
+   * The n-th build of every submitter (or repository) is ranked n, so builds of different
+   * submitters take turns.
+   */
+  private static void rankRoundRobin(List<Entry> reviews, String property) {
+    Map<String, Integer> counts = new HashMap<String, Integer>();
+    for (Entry e : reviews) {
+      Map<String, String> properties = e.review.getCapturedProperties();
+      String key = properties == null ? null : properties.get(property);
+      Integer n = counts.get(key);
+      int turn = n == null ? 0 : n;
+      e.rank = turn;
+      counts.put(key, turn + 1);
+    }
+  }
+
+  private static ReviewboardParameterValue reviewOf(List<Action> actions) {
+    for (Action a : actions) {
+      if (!(a instanceof ParametersAction)) continue;
+      ParameterValue value = ((ParametersAction) a).getParameter("review.url");
+      if (value instanceof ReviewboardParameterValue) return (ReviewboardParameterValue) value;
+    }
+    return null;
+  }
+
+  static class Entry {
+    final Queue.BuildableItem item;
+    final ReviewboardParameterValue review;
+    final long queuedSince;
+    long rank;
+
+    Entry(Queue.BuildableItem item, ReviewboardParameterValue review) {
+      this.item = item;
+      this.review = review;
+      this.queuedSince = item.getInQueueSince();
+    }
+
+    /**
+     * Runs under the queue lock, so only reads the size recorded when the diff was fetched into the cache.
+     * @return size of the diff if it was fetched already, otherwise sorts after all known sizes
+     */
+    long diffSize() {
+      long size = review.getDiffSize();
+      return size > 0 ? size : Long.MAX_VALUE;
+    }
+
+    /**
+     * @return when the diff was uploaded, if known, otherwise sorts after all known times
+     */
+    long diffTime() {
+      long time = review.getDiffTime();
+      return time > 0 ? time : Long.MAX_VALUE;
+    }
+  }
+
+  private static final Comparator<Entry> BY_QUEUE_TIME = new Comparator<Entry>() {
+    public int compare(Entry a, Entry b) {
+      return a.queuedSince < b.queuedSince ? -1 : a.queuedSince == b.queuedSince ? 0 : 1;
+    }
+  };
+
+  private static final Comparator<Entry> BY_RANK = new Comparator<Entry>() {
+    public int compare(Entry a, Entry b) {
+      return a.rank < b.rank ? -1 : a.rank == b.rank ? 0 : 1;
+    }
+  };
+}
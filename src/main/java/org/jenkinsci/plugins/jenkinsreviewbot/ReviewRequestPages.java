@@ -0,0 +1,65 @@
+/*
+Copyright (c) 2013 VMware, Inc. All Rights Reserved.
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to
+deal in the Software without restriction, including without limitation the
+rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+sell copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+IN THE SOFTWARE.
+*/
+
+package org.jenkinsci.plugins.jenkinsreviewbot;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.ImmutableList;
+
+import java.util.List;
+
+/**
+ * Lazily walks the pages of a review request listing, following the <code>next</code> link of each page.
+ * A page is only requested when the caller asks for it, so stopping early saves the remaining requests.
+ */
+class ReviewRequestPages extends AbstractIterator<List<ReviewboardOps.ReviewItem>> {
+
+  private final ReviewboardOps ops;
+  private final ReviewboardConnection con;
+  private String nextUrl;
+  private int requests = 0;
+
+  ReviewRequestPages(ReviewboardOps ops, ReviewboardConnection con, String firstPageUrl) {
+    this.ops = ops;
+    this.con = con;
+    this.nextUrl = firstPageUrl;
+  }
+
+  int getRequests() {
+    return requests;
+  }
+
+  @Override
+  protected List<ReviewboardOps.ReviewItem> computeNext() {
+    if (nextUrl == null) return endOfData();
+    ReviewboardOps.ReviewsResponse page = ops.getResponse(con, nextUrl, ReviewboardOps.ReviewsResponse.class);
+    requests++;
+    nextUrl = page.links != null && page.links.next != null ? page.links.next.href : null;
+    List<ReviewboardOps.ReviewItem> items = page.requests == null ? null : page.requests.array;
+    if (items == null || items.isEmpty()) {
+      nextUrl = null;
+      return endOfData();
+    }
+    return ImmutableList.copyOf(items);
+  }
+
+}
@@ -23,6 +23,10 @@ IN THE SOFTWARE.
 package org.jenkinsci.plugins.jenkinsreviewbot;
 
 import org.apache.commons.httpclient.auth.AuthScope;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -37,6 +41,8 @@ public class ReviewboardConnection {
   private final String reviewboardPassword;
 
   private static final Pattern digitsPattern = Pattern.compile("\\d+");
+  private static final Pattern repositoryPattern = Pattern.compile("/repositories/(\\d+)/");
+  static final int PAGE_SIZE = 200;
 
   public static ReviewboardConnection fromConfiguration() {
     ReviewboardDescriptor d = ReviewboardNotifier.DESCRIPTOR;
@@ -161,12 +167,18 @@ public class ReviewboardConnection {
   }
 
   public String getPendingReviewsUrl(boolean onlyToJenkinsUser, int repoid) {
+    return getPendingReviewsUrl(onlyToJenkinsUser, repoid, null);
+  }
+
+  public String getPendingReviewsUrl(boolean onlyToJenkinsUser, int repoid, Date updatedFrom) {
     //e.g. https://reviewboard.eng.vmware.com/api/review-requests/?to-users=...
     StringBuilder sb = new StringBuilder(128);
     sb.append(reviewboardURL).append("api/review-requests/");
     sb.append('?').append("status=pending");
     if (onlyToJenkinsUser) sb.append('&').append("to-users=").append(reviewboardUsername);
-    sb.append('&').append("max-results=200");
+    if (updatedFrom != null) sb.append('&').append("last-updated-from=").append(formatTimestamp(updatedFrom));
+    sb.append('&').append("order-by=-last_updated");
+    sb.append('&').append("max-results=").append(PAGE_SIZE);
     if (repoid >= 0) {
       // user selected to filter by repository
       // rationale is that different repository means different test job.
@@ -175,6 +187,12 @@ public class ReviewboardConnection {
     return sb.toString();
   }
 
+  static String formatTimestamp(Date date) {
+    SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+    format.setTimeZone(TimeZone.getTimeZone("UTC"));
+    return format.format(date);
+  }
+
   public String getCommentsUrl(long id) {
     return buildApiUrlFromId(id, "reviews");
   }
@@ -184,6 +202,20 @@ public class ReviewboardConnection {
     return reviewboardURL.concat("api/repositories/?max-results=200");
   }
 
+  public String getGroupUsersUrl(String group) {
+    // e.g. https://reviewboard.eng.vmware.com/api/groups/mygroup/users/
+    return reviewboardURL.concat("api/groups/").concat(group).concat("/users/?max-results=200");
+  }
+
+  /**
+   * @return the id of the repository an API link points to, e.g. 42 for .../api/repositories/42/, or -1
+   */
+  static int repositoryId(String href) {
+    if (href == null) return -1;
+    Matcher m = repositoryPattern.matcher(href);
+    return m.find() ? Integer.parseInt(m.group(1)) : -1;
+  }
+
   public String buildApiUrlFromId(long id, String what) {
     StringBuilder sb = new StringBuilder(128);
     sb.append(reviewboardURL).append("api/review-requests/").append(id).append('/');
@@ -22,9 +22,12 @@ IN THE SOFTWARE.
 
 package org.jenkinsci.plugins.jenkinsreviewbot;
 
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.Publisher;
 import hudson.util.FormValidation;
+import hudson.util.ListBoxModel;
 import hudson.util.Secret;
 import net.sf.json.JSONObject;
 import org.apache.commons.httpclient.HttpClient;
@@ -34,6 +37,9 @@ import org.kohsuke.stapler.StaplerRequest;
 
 import javax.servlet.ServletException;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 /**
 * User: ymeymann
@@ -47,10 +53,52 @@ public class ReviewboardDescriptor extends BuildStepDescriptor<Publisher> {
 
   private boolean disableRepoCache = false;
   private boolean disableAutoApply = false;
+  private boolean downloadDiffOnAgent = false;
+  private boolean cancelSupersededBuilds = true;
+  private int maxBuildsPerPoll = 0;
+  private int maxQueuedPerJob = 0;
+  private int maxQueueLength = 0;
+  private ReviewQueueSorter.Order queueOrder = ReviewQueueSorter.Order.FIFO;
+  private int enrichmentThreads = ReviewEnricher.DEFAULT_CONCURRENCY;
+  private boolean useStreamingDecoder = false;
+  private int responseCacheSize = ResponseCache.DEFAULT_SIZE;
+  private int maxConnectionsPerHost = ConnectionPool.Settings.DEFAULT_MAX_PER_HOST;
+  private int maxConnections = ConnectionPool.Settings.DEFAULT_MAX_TOTAL;
+  private int connectTimeout = ConnectionPool.Settings.DEFAULT_CONNECT_TIMEOUT / 1000;
+  private int socketTimeout = ConnectionPool.Settings.DEFAULT_SOCKET_TIMEOUT / 1000;
+  private int idleConnectionTimeout = ConnectionPool.Settings.DEFAULT_IDLE_TIMEOUT / 1000;
+  private int readRateLimit = 0;
+  private int writeRateLimit = 0;
+  private int rateLimitBurst = RequestGuard.Settings.DEFAULT_BURST;
+  private int breakerFailureThreshold = RequestGuard.Settings.DEFAULT_FAILURE_THRESHOLD;
+  private int breakerSlowCall = 0;
+  private int breakerOpenDuration = RequestGuard.Settings.DEFAULT_OPEN_DURATION / 1000;
+  private int requestAttempts = RequestPolicy.Settings.DEFAULT_MAX_ATTEMPTS;
+  private int retryDelay = RequestPolicy.Settings.DEFAULT_BACKOFF;
+  private int readDeadline = RequestPolicy.Settings.DEFAULT_READ_DEADLINE / 1000;
+  private int commentDeadline = RequestPolicy.Settings.DEFAULT_WRITE_DEADLINE / 1000;
+  private int hedgeDelay = 0;
+  private Secret webhookSecret;
+  private int diffCacheSize = DiffCache.DEFAULT_MAX_SIZE_MB;
+  private int diffCacheMaxAge = DiffCache.DEFAULT_MAX_AGE_DAYS;
+  private int diffMemoryThreshold = SpillBuffer.DEFAULT_THRESHOLD / 1024;
+  private int pollingInterval = 0;
+  private int pollingMaxInterval = 0;
+  private int pollingCheckBackPeriod = 1;
+  private boolean pollingRestrictByUser = true;
+  private boolean pollingDisableAdvanceNotice = false;
+  private List<ReviewboardRoute> routes = new ArrayList<ReviewboardRoute>();
 
   public ReviewboardDescriptor() {
     super(ReviewboardNotifier.class);
     load();
+    ReviewboardOps.getInstance().setStreamingDecoder(useStreamingDecoder);
+    ReviewboardOps.getInstance().setResponseCacheSize(responseCacheSize);
+    ReviewboardOps.getInstance().setPoolSettings(getPoolSettings());
+    ReviewboardOps.getInstance().setGuardSettings(getGuardSettings());
+    ReviewboardOps.getInstance().setPolicySettings(getPolicySettings());
+    DiffCache.getInstance().setLimits(diffCacheSize, diffCacheMaxAge);
+    ReviewboardOps.getInstance().setSpillThreshold(diffMemoryThreshold * 1024);
   }
 
   @Override
@@ -80,6 +128,10 @@ public class ReviewboardDescriptor extends BuildStepDescriptor<Publisher> {
     return Secret.toString(reviewboardPassword);
   }
 
+  public String getWebhookSecret() {
+    return Secret.toString(webhookSecret);
+  }
+
   public boolean getDisableRepoCache() {
     return disableRepoCache;
   }
@@ -88,6 +140,203 @@ public class ReviewboardDescriptor extends BuildStepDescriptor<Publisher> {
     return disableAutoApply;
   }
 
+  public boolean getDownloadDiffOnAgent() {
+    return downloadDiffOnAgent;
+  }
+
+  public boolean getCancelSupersededBuilds() {
+    return cancelSupersededBuilds;
+  }
+
+  public int getMaxBuildsPerPoll() {
+    return maxBuildsPerPoll;
+  }
+
+  public int getMaxQueuedPerJob() {
+    return maxQueuedPerJob;
+  }
+
+  public int getMaxQueueLength() {
+    return maxQueueLength;
+  }
+
+  public ReviewQueueSorter.Order getQueueOrder() {
+    return queueOrder == null ? ReviewQueueSorter.Order.FIFO : queueOrder;
+  }
+
+  public ListBoxModel doFillQueueOrderItems() {
+    ListBoxModel items = new ListBoxModel();
+    for (ReviewQueueSorter.Order o : ReviewQueueSorter.Order.values()) items.add(o.getDisplayName(), o.name());
+    return items;
+  }
+
+  public boolean getUseStreamingDecoder() {
+    return useStreamingDecoder;
+  }
+
+  public int getResponseCacheSize() {
+    return responseCacheSize;
+  }
+
+  public String getResponseCacheStatus() {
+    return ReviewboardOps.getInstance().getResponseCache().toString();
+  }
+
+  public int getMaxConnectionsPerHost() {
+    return maxConnectionsPerHost;
+  }
+
+  public int getMaxConnections() {
+    return maxConnections;
+  }
+
+  public int getConnectTimeout() {
+    return connectTimeout;
+  }
+
+  public int getSocketTimeout() {
+    return socketTimeout;
+  }
+
+  public int getIdleConnectionTimeout() {
+    return idleConnectionTimeout;
+  }
+
+  public int getReadRateLimit() {
+    return readRateLimit;
+  }
+
+  public int getWriteRateLimit() {
+    return writeRateLimit;
+  }
+
+  public int getRateLimitBurst() {
+    return rateLimitBurst;
+  }
+
+  public int getBreakerFailureThreshold() {
+    return breakerFailureThreshold;
+  }
+
+  public int getBreakerSlowCall() {
+    return breakerSlowCall;
+  }
+
+  public int getBreakerOpenDuration() {
+    return breakerOpenDuration;
+  }
+
+  public int getRequestAttempts() {
+    return requestAttempts;
+  }
+
+  public int getRetryDelay() {
+    return retryDelay;
+  }
+
+  public int getReadDeadline() {
+    return readDeadline;
+  }
+
+  public int getCommentDeadline() {
+    return commentDeadline;
+  }
+
+  public int getHedgeDelay() {
+    return hedgeDelay;
+  }
+
+  public int getDiffCacheSize() {
+    return diffCacheSize;
+  }
+
+  public int getDiffCacheMaxAge() {
+    return diffCacheMaxAge;
+  }
+
+  public int getDiffMemoryThreshold() {
+    return diffMemoryThreshold;
+  }
+
+  public String getDiffCacheStatus() {
+    return DiffCache.getInstance().toString();
+  }
+
+  /**
+   * Starts posting the comments a previous run left in the outbox.
+   */
+  @Initializer(after = InitMilestone.JOB_LOADED)
+  public static void startCommentOutbox() {
+    CommentOutbox.getInstance();
+  }
+
+  public String getCommentOutboxStatus() {
+    return CommentOutbox.getInstance().toString();
+  }
+
+  public String getConnectionPoolStatus() {
+    return ReviewboardOps.getInstance().getConnectionPoolStatus();
+  }
+
+  public String getRequestGuardStatus() {
+    return ReviewboardOps.getInstance().getGuardStatus();
+  }
+
+  public String getRequestPolicyStatus() {
+    return ReviewboardOps.getInstance().getRequestPolicy().toString();
+  }
+
+  public List<String> getRequestHistory() {
+    return ReviewboardOps.getInstance().getRequestPolicy().getHistory();
+  }
+
+  public int getPollingInterval() {
+    return pollingInterval;
+  }
+
+  public int getPollingMaxInterval() {
+    return pollingMaxInterval;
+  }
+
+  public String getPollingStatus() {
+    return ReviewboardPoller.getInstance().getSchedule().toString();
+  }
+
+  public int getPollingCheckBackPeriod() {
+    return pollingCheckBackPeriod > 0 ? pollingCheckBackPeriod : 1;
+  }
+
+  public boolean getPollingRestrictByUser() {
+    return pollingRestrictByUser;
+  }
+
+  public boolean getPollingDisableAdvanceNotice() {
+    return pollingDisableAdvanceNotice;
+  }
+
+  public List<ReviewboardRoute> getRoutes() {
+    return routes == null ? Collections.<ReviewboardRoute>emptyList() : Collections.unmodifiableList(routes);
+  }
+
+  ConnectionPool.Settings getPoolSettings() {
+    return new ConnectionPool.Settings(maxConnectionsPerHost, maxConnections,
+        connectTimeout * 1000, socketTimeout * 1000, idleConnectionTimeout * 1000);
+  }
+
+  RequestGuard.Settings getGuardSettings() {
+    return new RequestGuard.Settings(readRateLimit / 60.0, writeRateLimit / 60.0, rateLimitBurst,
+        breakerFailureThreshold, breakerSlowCall * 1000L, breakerOpenDuration * 1000L);
+  }
+
+  RequestPolicy.Settings getPolicySettings() {
+    return new RequestPolicy.Settings(requestAttempts, retryDelay,
+        readDeadline * 1000L, commentDeadline * 1000L, hedgeDelay);
+  }
+
+  public int getEnrichmentThreads() {
+    return enrichmentThreads > 0 ? enrichmentThreads : ReviewEnricher.DEFAULT_CONCURRENCY;
+  }
+
   @Override
   public boolean configure(StaplerRequest req, JSONObject formData) throws FormException {
     reviewboardURL =      formData.getString("reviewboardURL");
@@ -99,6 +348,121 @@ public class ReviewboardDescriptor extends BuildStepDescriptor<Publisher> {
     if (formData.containsKey("disableAutoApply")) {
       disableAutoApply = formData.getBoolean("disableAutoApply");
     }
+    if (formData.containsKey("downloadDiffOnAgent")) {
+      downloadDiffOnAgent = formData.getBoolean("downloadDiffOnAgent");
+    }
+    if (formData.containsKey("cancelSupersededBuilds")) {
+      cancelSupersededBuilds = formData.getBoolean("cancelSupersededBuilds");
+    }
+    if (formData.containsKey("maxBuildsPerPoll")) {
+      maxBuildsPerPoll = formData.optInt("maxBuildsPerPoll", 0);
+    }
+    if (formData.containsKey("maxQueuedPerJob")) {
+      maxQueuedPerJob = formData.optInt("maxQueuedPerJob", 0);
+    }
+    if (formData.containsKey("maxQueueLength")) {
+      maxQueueLength = formData.optInt("maxQueueLength", 0);
+    }
+    if (formData.containsKey("queueOrder")) {
+      try {
+        queueOrder = ReviewQueueSorter.Order.valueOf(formData.getString("queueOrder"));
+      } catch (IllegalArgumentException e) {
+        throw new FormException("Unknown queue order " + formData.getString("queueOrder"), "queueOrder");
+      }
+    }
+    if (formData.containsKey("enrichmentThreads")) {
+      enrichmentThreads = formData.optInt("enrichmentThreads", ReviewEnricher.DEFAULT_CONCURRENCY);
+    }
+    if (formData.containsKey("useStreamingDecoder")) {
+      useStreamingDecoder = formData.getBoolean("useStreamingDecoder");
+    }
+    if (formData.containsKey("responseCacheSize")) {
+      responseCacheSize = formData.optInt("responseCacheSize", ResponseCache.DEFAULT_SIZE);
+    }
+    if (formData.containsKey("webhookSecret")) {
+      webhookSecret = Secret.fromString(formData.getString("webhookSecret"));
+    }
+    if (formData.containsKey("maxConnectionsPerHost")) {
+      maxConnectionsPerHost = formData.optInt("maxConnectionsPerHost", ConnectionPool.Settings.DEFAULT_MAX_PER_HOST);
+    }
+    if (formData.containsKey("maxConnections")) {
+      maxConnections = formData.optInt("maxConnections", ConnectionPool.Settings.DEFAULT_MAX_TOTAL);
+    }
+    if (formData.containsKey("connectTimeout")) {
+      connectTimeout = formData.optInt("connectTimeout", ConnectionPool.Settings.DEFAULT_CONNECT_TIMEOUT / 1000);
+    }
+    if (formData.containsKey("socketTimeout")) {
+      socketTimeout = formData.optInt("socketTimeout", ConnectionPool.Settings.DEFAULT_SOCKET_TIMEOUT / 1000);
+    }
+    if (formData.containsKey("idleConnectionTimeout")) {
+      idleConnectionTimeout = formData.optInt("idleConnectionTimeout", ConnectionPool.Settings.DEFAULT_IDLE_TIMEOUT / 1000);
+    }
+    if (formData.containsKey("readRateLimit")) {
+      readRateLimit = formData.optInt("readRateLimit", 0);
+    }
+    if (formData.containsKey("writeRateLimit")) {
+      writeRateLimit = formData.optInt("writeRateLimit", 0);
+    }
+    if (formData.containsKey("rateLimitBurst")) {
+      rateLimitBurst = formData.optInt("rateLimitBurst", RequestGuard.Settings.DEFAULT_BURST);
+    }
+    if (formData.containsKey("breakerFailureThreshold")) {
+      breakerFailureThreshold = formData.optInt("breakerFailureThreshold", RequestGuard.Settings.DEFAULT_FAILURE_THRESHOLD);
+    }
+    if (formData.containsKey("breakerSlowCall")) {
+      breakerSlowCall = formData.optInt("breakerSlowCall", 0);
+    }
+    if (formData.containsKey("breakerOpenDuration")) {
+      breakerOpenDuration = formData.optInt("breakerOpenDuration", RequestGuard.Settings.DEFAULT_OPEN_DURATION / 1000);
+    }
+    if (formData.containsKey("requestAttempts")) {
+      requestAttempts = formData.optInt("requestAttempts", RequestPolicy.Settings.DEFAULT_MAX_ATTEMPTS);
+    }
+    if (formData.containsKey("retryDelay")) {
+      retryDelay = formData.optInt("retryDelay", RequestPolicy.Settings.DEFAULT_BACKOFF);
+    }
+    if (formData.containsKey("readDeadline")) {
+      readDeadline = formData.optInt("readDeadline", RequestPolicy.Settings.DEFAULT_READ_DEADLINE / 1000);
+    }
+    if (formData.containsKey("commentDeadline")) {
+      commentDeadline = formData.optInt("commentDeadline", RequestPolicy.Settings.DEFAULT_WRITE_DEADLINE / 1000);
+    }
+    if (formData.containsKey("hedgeDelay")) {
+      hedgeDelay = formData.optInt("hedgeDelay", 0);
+    }
+    ReviewboardOps.getInstance().setStreamingDecoder(useStreamingDecoder);
+    ReviewboardOps.getInstance().setResponseCacheSize(responseCacheSize);
+    if (formData.containsKey("diffCacheSize")) {
+      diffCacheSize = formData.optInt("diffCacheSize", DiffCache.DEFAULT_MAX_SIZE_MB);
+    }
+    if (formData.containsKey("diffCacheMaxAge")) {
+      diffCacheMaxAge = formData.optInt("diffCacheMaxAge", DiffCache.DEFAULT_MAX_AGE_DAYS);
+    }
+    if (formData.containsKey("diffMemoryThreshold")) {
+      diffMemoryThreshold = formData.optInt("diffMemoryThreshold", SpillBuffer.DEFAULT_THRESHOLD / 1024);
+    }
+    if (formData.containsKey("pollingInterval")) {
+      pollingInterval = formData.optInt("pollingInterval", 0);
+    }
+    if (formData.containsKey("pollingMaxInterval")) {
+      pollingMaxInterval = formData.optInt("pollingMaxInterval", 0);
+    }
+    if (formData.containsKey("pollingCheckBackPeriod")) {
+      pollingCheckBackPeriod = formData.optInt("pollingCheckBackPeriod", 1);
+    }
+    if (formData.containsKey("pollingRestrictByUser")) {
+      pollingRestrictByUser = formData.getBoolean("pollingRestrictByUser");
+    }
+    if (formData.containsKey("pollingDisableAdvanceNotice")) {
+      pollingDisableAdvanceNotice = formData.getBoolean("pollingDisableAdvanceNotice");
+    }
+    // an empty repeatable list is not submitted at all
+    routes = new ArrayList<ReviewboardRoute>(req.bindJSONToList(ReviewboardRoute.class, formData.opt("routes")));
+    ReviewboardOps.getInstance().setPoolSettings(getPoolSettings());
+    ReviewboardOps.getInstance().setGuardSettings(getGuardSettings());
+    ReviewboardOps.getInstance().setPolicySettings(getPolicySettings());
+    DiffCache.getInstance().setLimits(diffCacheSize, diffCacheMaxAge);
+    ReviewboardOps.getInstance().setSpillThreshold(diffMemoryThreshold * 1024);
     save();
     return super.configure(req,formData);
   }
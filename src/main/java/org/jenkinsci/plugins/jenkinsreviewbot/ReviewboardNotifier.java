@@ -87,6 +87,10 @@ public class ReviewboardNotifier extends Notifier implements MatrixAggregatable
       null;
     if (rbParam == null) throw new UnsupportedOperationException("review.url parameter is null or invalid");
     String url = rbParam.getLocation();
+    if (build.getAction(SupersededBuilds.Superseded.class) != null) {
+      listener.getLogger().println("Build was superseded by a newer diff revision, not notifying");
+      return true;
+    }
     Result result = build.getResult();
     boolean patchFailed = rbParam.isPatchFailed();
     boolean success = result.equals(Result.SUCCESS);
@@ -103,7 +107,9 @@ public class ReviewboardNotifier extends Notifier implements MatrixAggregatable
       if (!Strings.isNullOrEmpty(customMessage)) {
         msg = msg + "\n" + env.expand(customMessage);
       }
-      ReviewboardOps.getInstance().postComment(url, msg, success && getShipItOnSuccess(), useMarkdown);
+      // posted in the background, so a slow or unavailable Reviewboard does not hold up the build
+      CommentOutbox.getInstance().enqueue(url, msg, success && getShipItOnSuccess(), useMarkdown);
+      listener.getLogger().println("Comment queued for " + url);
     } catch (Exception e) {
       listener.getLogger().println("Error posting to reviewboard: " + e.toString());
     }
@@ -22,31 +22,31 @@ IN THE SOFTWARE.
 
 package org.jenkinsci.plugins.jenkinsreviewbot;
 
-import com.google.common.base.Function;
-import com.google.common.base.Predicate;
-import com.google.common.collect.Collections2;
 import org.apache.commons.httpclient.*;
-import org.apache.commons.httpclient.auth.AuthScope;
 import org.apache.commons.httpclient.methods.GetMethod;
 import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.io.IOUtils;
+import org.jenkinsci.plugins.jenkinsreviewbot.util.PendingReviews;
 import org.jenkinsci.plugins.jenkinsreviewbot.util.Review;
 
-import javax.annotation.Nullable;
-import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
-import javax.xml.bind.Unmarshaller;
 import javax.xml.bind.annotation.XmlElement;
 import javax.xml.bind.annotation.XmlElementWrapper;
 import javax.xml.bind.annotation.XmlRootElement;
 import javax.xml.bind.annotation.adapters.XmlAdapter;
 import javax.xml.bind.annotation.adapters.XmlJavaTypeAdapter;
 import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Created by ymeymann on 24/04/15.
@@ -54,14 +54,116 @@ import java.util.*;
 public class ReviewboardOps {
 
   private static final long HOUR = 60 * 60 * 1000;
-  private static ReviewboardOps instance = new ReviewboardOps(new HttpClient(new MultiThreadedHttpConnectionManager()));
+  private static final int POSTED_KEYS = 1000;
+  // how many of the latest reviews of a request are checked for a comment that may have been posted already
+  private static final int LATEST_REVIEWS = 25;
+  private static ReviewboardOps instance = new ReviewboardOps();
+
+  private volatile ResponseDecoder decoder = ResponseDecoder.JAXB;
+  private final ResponseCache cache = new ResponseCache(ResponseCache.DEFAULT_SIZE);
+  private final ConcurrentMap<ReviewboardConnection, ReviewboardSession> sessions =
+      new ConcurrentHashMap<ReviewboardConnection, ReviewboardSession>();
+
+  private final ConcurrentMap<String, RequestGuard> guards = new ConcurrentHashMap<String, RequestGuard>();
+  private final RequestPolicy policy = new RequestPolicy(RequestPolicy.Settings.DEFAULT);
+  // dedupe keys of the comments posted lately, so that a comment retried after it got through is not posted again
+  private final Set<String> postedKeys = Collections.synchronizedSet(Collections.newSetFromMap(
+      new LinkedHashMap<String, Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+          return size() > POSTED_KEYS;
+        }
+      }));
 
-  private final HttpClient http;
+  private volatile ConnectionPool.Settings poolSettings = ConnectionPool.Settings.DEFAULT;
+  private volatile RequestGuard.Settings guardSettings = RequestGuard.Settings.DEFAULT;
+  private volatile int spillThreshold = SpillBuffer.DEFAULT_THRESHOLD;
 
-  ReviewboardOps(HttpClient http) { this.http = http; }
 
   public static ReviewboardOps getInstance() { return instance; }
 
+  void setStreamingDecoder(boolean streaming) {
+    decoder = streaming ? ResponseDecoder.STREAMING : ResponseDecoder.JAXB;
+  }
+
+  void setResponseCacheSize(int size) {
+    cache.setMaxSize(size);
+  }
+
+  ResponseCache getResponseCache() {
+    return cache;
+  }
+
+  void setSpillThreshold(int bytes) {
+    spillThreshold = bytes;
+  }
+
+  void setPoolSettings(ConnectionPool.Settings settings) {
+    poolSettings = settings;
+    for (ReviewboardSession session : sessions.values()) {
+      ConnectionPool pool = session.getPool();
+      if (pool != null) pool.configure(settings);
+    }
+  }
+
+  String getConnectionPoolStatus() {
+    StringBuilder sb = new StringBuilder();
+    for (ReviewboardSession session : sessions.values()) {
+      ConnectionPool pool = session.getPool();
+      if (pool == null) continue;
+      if (sb.length() > 0) sb.append("; ");
+      ReviewboardConnection con = session.getConnection();
+      sb.append(con.getReviewboardUsername()).append('@').append(con.getReviewboardURL()).append(": ").append(pool);
+    }
+    return sb.length() > 0 ? sb.toString() : "no open sessions";
+  }
+
+  void setGuardSettings(RequestGuard.Settings settings) {
+    guardSettings = settings;
+    for (RequestGuard guard : guards.values()) guard.configure(settings);
+  }
+
+  String getGuardStatus() {
+    StringBuilder sb = new StringBuilder();
+    for (Map.Entry<String, RequestGuard> e : guards.entrySet()) {
+      if (sb.length() > 0) sb.append("; ");
+      sb.append(e.getKey()).append(": ").append(e.getValue());
+    }
+    return sb.length() > 0 ? sb.toString() : "no requests made";
+  }
+
+  void setPolicySettings(RequestPolicy.Settings settings) {
+    policy.configure(settings);
+  }
+
+  RequestPolicy getRequestPolicy() {
+    return policy;
+  }
+
+  private RequestGuard getGuard(String server) {
+    RequestGuard guard = guards.get(server);
+    if (guard == null) {
+      RequestGuard created = new RequestGuard(server, guardSettings);
+      guard = guards.putIfAbsent(server, created);
+      if (guard == null) guard = created;
+    }
+    return guard;
+  }
+
+  ReviewboardSession getSession(ReviewboardConnection con) {
+    ReviewboardSession session = sessions.get(con);
+    if (session == null) {
+      // every connection gets a pool of its own, so one busy server or user doesn't starve the others,
+      // but the rate limit and breaker are shared by all users of a server
+      ReviewboardSession created = new ReviewboardSession(con, new HttpClient(new ConnectionPool(poolSettings)),
+          getGuard(con.getReviewboardURL()));
+      session = sessions.putIfAbsent(con, created);
+      if (session == null) session = created;
+      else created.close();
+    }
+    return session;
+  }
+
   /* --------------------- logout ----------------------- */
 
   public static boolean logout(ReviewboardConnection con, HttpClient http) {
@@ -89,88 +191,188 @@ public class ReviewboardOps {
 
   /* ------------- ensure authentication ---------------- */
 
-  private static synchronized void initializeAuthentication(ReviewboardConnection con, HttpClient http) {
-    ReviewboardConnection.Host host = con.getHost();
-    http.getState().setCredentials(new AuthScope(host.host, host.port, AuthScope.ANY_REALM),
-            new UsernamePasswordCredentials(con.getReviewboardUsername(), con.getReviewboardPassword()));
-    http.getParams().setAuthenticationPreemptive(true);
-  }
-
   public void ensureAuthentication(ReviewboardConnection con)  throws IOException {
-    ensureAuthentication(con, http);
+    getSession(con).ensureAuthenticated();
   }
 
+  /**
+   * Checks the credentials of the connection, e.g. when validating the configuration.
+   * The session cookie is kept in the state of the given client, so that it can {@link #logout} afterwards.
+   */
   public static void ensureAuthentication(ReviewboardConnection con, HttpClient http)  throws IOException {
-    int status = ensureAuthentication(con, http, true);
+    int status = new ReviewboardSession(con, http, http.getState()).login();
     if (status != 200) throw new IOException("HTTP status=" + status);
   }
 
-  private static int ensureAuthentication(ReviewboardConnection con, HttpClient http, boolean withRetry) throws IOException {
-    initializeAuthentication(con, http);
-    GetMethod url = new GetMethod(con.getReviewboardURL() + "api/session/");
-    try {
-      url.setDoAuthentication(true);
-      int res = http.executeMethod(url);
-      return res;
-    } catch (IOException e) {
-      //trying to recover from failure...
-      if (withRetry) return retryAuthentication(con, http); else throw e;
-    } finally {
-      url.releaseConnection();
-    }
-  }
-
-  private static int retryAuthentication(ReviewboardConnection con, HttpClient http) throws IOException {
-    initializeAuthentication(con, http);
-    return ensureAuthentication(con, http, false);
-  }
-
   /* --------------------- get diff --------------------- */
 
   public DiffHandle getDiff(String url) throws IOException {
     return getDiff(ReviewboardConnection.fromConfiguration(), url);
   }
 
+  /**
+   * @param revision the diff revision, if known, saves looking up the latest one
+   */
+  public DiffHandle getDiff(String url, int revision) throws IOException {
+    return getDiff(ReviewboardConnection.fromConfiguration(), url, revision);
+  }
+
   public DiffHandle getDiff(ReviewboardConnection con, String url) throws IOException {
-    return new DiffHandle(con, http, url);
+    return getDiff(con, url, 0);
   }
 
+  public DiffHandle getDiff(ReviewboardConnection con, String url, int revision) throws IOException {
+    return new DiffHandle(getSession(con), url, revision);
+  }
+
+  /**
+   * The latest diff of a review. It can be read once as a stream straight from the server, or buffered with
+   * {@link #size()}, {@link #getChannel()} or {@link #map()}, after which it can be read any number of times.
+   * Buffering keeps at most the spill threshold in memory and writes larger diffs to a temporary file.
+   */
   class DiffHandle implements Closeable {
     private final String url;
-    private final ReviewboardConnection con;
-    private final HttpClient http;
-    private GetMethod get = null;
-    private DiffHandle(ReviewboardConnection con, HttpClient http, String url) {
+    private final ReviewboardSession session;
+    private final int revision;
+    private final int threshold = spillThreshold;
+    private HttpMethod get = null;
+    private SpillBuffer buffer = null;
+    private DiffHandle(ReviewboardSession session, String url, int revision) {
       this.url = url;
-      this.con = con;
-      this.http = http;
+      this.session = session;
+      this.revision = revision;
     }
     InputStream getStream() throws IOException {
-      if (get == null) get = execDiffMethod(con, http, url);
+      if (buffer != null) return buffer.getInputStream();
+      if (get == null) get = execDiffMethod(session, url, revision);
       InputStream res = get.getResponseBodyAsStream();
       return res;
     }
-    String getString() throws IOException {
-      if (get == null) get = execDiffMethod(con, http, url);
-      String res = get.getResponseBodyAsString();
-      return res;
+    long size() throws IOException {
+      return buffer().size();
+    }
+    FileChannel getChannel() throws IOException {
+      return buffer().getChannel();
+    }
+    ByteBuffer map() throws IOException {
+      return buffer().map();
+    }
+    private SpillBuffer buffer() throws IOException {
+      if (buffer == null) {
+        if (get == null) get = execDiffMethod(session, url, revision);
+        SpillBuffer b = new SpillBuffer(threshold);
+        try {
+          b.readFrom(get.getResponseBodyAsStream());
+        } catch (IOException e) {
+          b.close();
+          throw e;
+        } finally {
+          get.releaseConnection();
+        }
+        buffer = b;
+      }
+      return buffer;
     }
     public void close() throws IOException {
       if (get != null) get.releaseConnection();
+      if (buffer != null) buffer.close();
     }
   }
 
-  private GetMethod execDiffMethod(ReviewboardConnection con, HttpClient http, String url) throws IOException {
-    ensureAuthentication(con, http);
-    String diffUrl = con.buildApiUrl(url, "diffs");
-    Response d = getResponse(http, diffUrl, Response.class);
-    if (d.count < 1) throw new RuntimeException("Review " + url + " has no diffs");
+  private HttpMethod execDiffMethod(ReviewboardSession session, String url, int revision) throws IOException {
+    ReviewboardConnection con = session.getConnection();
+    return execRawDiffMethod(session, getRawDiffUrl(con, url, revision > 0 ? revision : getDiffRevision(con, url)));
+  }
+
+  private HttpMethod execRawDiffMethod(ReviewboardSession session, final String rawDiffUrl) throws IOException {
 //    String diffUrl = url.concat("diff/raw/");
-    GetMethod diff = new GetMethod(diffUrl + d.count + "/");
-    diff.setDoAuthentication(true);
-    diff.setRequestHeader("Accept", "text/x-patch");
-    http.executeMethod(diff);
-    return diff;
+    return policy.download(session, rawDiffUrl, new RequestPolicy.Request() {
+      public HttpMethod create() {
+        GetMethod diff = new GetMethod(rawDiffUrl);
+        diff.setRequestHeader("Accept", "text/x-patch");
+        return diff;
+      }
+    });
+  }
+
+  /**
+   * @return the revision of the latest diff of the review
+   */
+  int getDiffRevision(ReviewboardConnection con, String url) {
+    Response d = getResponse(con, con.buildApiUrl(url, "diffs"), Response.class);
+    if (d.count < 1) throw new RuntimeException("Review " + url + " has no diffs");
+    return d.count;
+  }
+
+  static String getRawDiffUrl(ReviewboardConnection con, String url, int revision) {
+    return con.buildApiUrl(url, "diffs") + revision + "/";
+  }
+
+  /**
+   * Prepares a download of the latest diff of the review that can run on an agent, as this Jenkins' Reviewboard user.
+   * The agent gets the cookie of a session opened for this download alone, never the one the controller uses.
+   * @throws IOException if no such session could be opened; the diff should then be downloaded on the controller
+   */
+  AgentDownload newDiffDownload(String url, int revision, OutputStream archive) throws IOException {
+    ReviewboardConnection con = ReviewboardConnection.fromConfiguration();
+    ReviewboardSession shared = getSession(con);
+    if (revision <= 0) revision = getDiffRevision(con, url);
+    ReviewboardSession session = shared.fork();
+    String cookie = session.getCookieHeader();
+    ConnectionPool.Settings settings = poolSettings;
+    return new AgentDownload(session, new DiffDownloadTask(getRawDiffUrl(con, url, revision), cookie,
+        settings.connectTimeout, settings.socketTimeout, archive));
+  }
+
+  /**
+   * A diff download for an agent, with the session its cookie belongs to; closing it logs that session out.
+   */
+  static class AgentDownload implements Closeable {
+    private final ReviewboardSession session;
+    private final DiffDownloadTask task;
+
+    private AgentDownload(ReviewboardSession session, DiffDownloadTask task) {
+      this.session = session;
+      this.task = task;
+    }
+
+    DiffDownloadTask getTask() {
+      return task;
+    }
+
+    public void close() throws IOException {
+      if (!session.logout()) throw new IOException("Reviewboard did not end the session of the diff download");
+    }
+  }
+
+  /**
+   * Gets the latest diff of the review from the {@link DiffCache}, downloading it only if that revision is not cached.
+   * @return the cache entry, which must be closed once its file has been read
+   */
+  public DiffCache.Entry getCachedDiff(String url, int revision) throws IOException {
+    return getCachedDiff(ReviewboardConnection.fromConfiguration(), url, revision);
+  }
+
+  /**
+   * @param revision the diff revision, if known, saves looking up the latest one
+   */
+  public DiffCache.Entry getCachedDiff(ReviewboardConnection con, String url, int revision) throws IOException {
+    final ReviewboardSession session = getSession(con);
+    // the raw diff URL names the server, the review request and the diff revision
+    final String rawDiffUrl = getRawDiffUrl(con, url, revision > 0 ? revision : getDiffRevision(con, url));
+    return DiffCache.getInstance().get(rawDiffUrl, new DiffCache.Loader() {
+      public void download(OutputStream out) throws IOException {
+        HttpMethod diff = execRawDiffMethod(session, rawDiffUrl);
+        try {
+          if (diff.getStatusCode() != 200) {
+            throw new IOException("Downloading " + rawDiffUrl + " failed with code " + diff.getStatusCode());
+          }
+          IOUtils.copy(diff.getResponseBodyAsStream(), out);
+        } finally {
+          diff.releaseConnection();
+        }
+      }
+    });
   }
 
   /* ------------------ get properties ------------------- */
@@ -180,63 +382,70 @@ public class ReviewboardOps {
   }
 
   public Map<String,String> getProperties(ReviewboardConnection con, String url) throws IOException {
-    ensureAuthentication(con, http);
-    ReviewRequest response = getResponse(http, con.buildApiUrl(url, ""), ReviewRequest.class);
-    String branch = response.request.branch;
+    ReviewRequest response = getResponse(con, con.buildApiUrl(url, ""), ReviewRequest.class);
+    return getProperties(response.request);
+  }
+
+  /**
+   * @return the build variables describing the review request
+   */
+  static Map<String,String> getProperties(ReviewItem request) {
+    String branch = request.branch;
     Map<String,String> m = new HashMap<String,String>();
     m.put("REVIEW_BRANCH", branch == null || branch.isEmpty() ? "master" : branch);
-    String repo = response.request.links.repository.title;
+    String repo = request.links == null || request.links.repository == null ? null : request.links.repository.title;
     m.put("REVIEW_REPOSITORY", repo == null || repo.isEmpty() ? "unknown" : repo);
-    String submitter = response.request.links.submitter.title;
+    String submitter = request.links == null || request.links.submitter == null ? null : request.links.submitter.title;
     m.put("REVIEW_USER", submitter == null || submitter.isEmpty() ? "unknown" : submitter);
+    int repoId = ReviewboardConnection.repositoryId(request.links == null || request.links.repository == null ?
+        null : request.links.repository.href);
+    if (repoId >= 0) m.put("REVIEW_REPOSITORY_ID", String.valueOf(repoId));
     return m;
   }
 
   /* ---------------- get pending reviews ---------------- */
 
-  public Collection<Review.Slim> getPendingReviews(final ReviewboardConnection con, long periodInHours,
-                                                   boolean restrictByUser, int repoid)
+  public PendingReviews getPendingReviews(ReviewboardConnection con, long periodInHours,
+                                          boolean restrictByUser, int repoid)
+          throws IOException, JAXBException, ParseException {
+    return getPendingReviews(con, periodInHours, restrictByUser, repoid, ReviewEnricher.DEFAULT_CONCURRENCY);
+  }
+
+  public PendingReviews getPendingReviews(ReviewboardConnection con, long periodInHours,
+                                          boolean restrictByUser, int repoid, int concurrency)
+          throws IOException, JAXBException, ParseException {
+    return getPendingReviews(con, periodInHours, restrictByUser, repoid, null, concurrency);
+  }
+
+  /**
+   * @param updatedFrom if not null, only review requests updated since this time are queried
+   */
+  public PendingReviews getPendingReviews(ReviewboardConnection con, long periodInHours,
+                                          boolean restrictByUser, int repoid, Date updatedFrom, int concurrency)
           throws IOException, JAXBException, ParseException {
-    ensureAuthentication(con, http);
-    ReviewsResponse response = getResponse(http, con.getPendingReviewsUrl(restrictByUser, repoid), ReviewsResponse.class);
-    List<ReviewItem> list = response.requests.array;
-    if (list == null || list.isEmpty()) return Collections.emptyList();
-    Collections.sort(list, Collections.reverseOrder());
     long period = periodInHours >= 0 ? periodInHours * HOUR : HOUR;
-    final long coldThreshold = list.get(0).lastUpdated.getTime() - period;
-    Collection<ReviewItem> hot = Collections2.filter(list, new Predicate<ReviewItem>() {
-      public boolean apply(ReviewItem input) {
-        return input.lastUpdated.getTime() >= coldThreshold; //check that the review is not too old
-      }
-    });
-    Function<ReviewItem, Review> enrich = new Function<ReviewItem, Review>() {
-      public Review apply(@Nullable ReviewItem input) {
-        Response d = getResponse(http, con.getDiffsUrl(input.id), Response.class);
-        Date lastUploadTime = d.count < 1 ? null : d.diffs.array.get(d.count - 1).timestamp;
-        String url = con.reviewNumberToUrl(Long.toString(input.id));
-        return new Review(url, lastUploadTime, input);
-      }
-    };
-    Collection<Review> hotRich = Collections2.transform(hot, enrich);
-    Predicate<Review> needsBuild = new Predicate<Review>() {
-      public boolean apply(Review input) {
-        if (input.getLastUpdate() == null) return false; //no diffs found
-        Response c = getResponse(http, con.getCommentsUrl(input.getInput().id), Response.class);
-        //no comments from this user after last diff upload
-        for (Item r : c.reviews.array) {
-          if (con.getReviewboardUsername().equals(r.links.user.title) &&
-                  r.timestamp.after(input.getLastUpdate())) {
-            return false;
-          }
-        }
-        return true;
+    String url = con.getPendingReviewsUrl(restrictByUser, repoid, updatedFrom);
+    ReviewRequestPages pages = new ReviewRequestPages(this, con, url);
+    List<ReviewItem> hot = new ArrayList<ReviewItem>();
+    Date newest = null;
+    long coldThreshold = Long.MIN_VALUE;
+    while (pages.hasNext()) {
+      List<ReviewItem> page = new ArrayList<ReviewItem>(pages.next());
+      Collections.sort(page, Collections.reverseOrder());
+      if (newest == null || page.get(0).lastUpdated.after(newest)) newest = page.get(0).lastUpdated;
+      if (coldThreshold == Long.MIN_VALUE) coldThreshold = newest.getTime() - period;
+      boolean reachedCold = false;
+      for (ReviewItem item : page) {
+        if (item.lastUpdated.getTime() >= coldThreshold) hot.add(item); //check that the review is not too old
+        else reachedCold = true;
       }
-    };
-    Collection<Review> unhandled = Collections2.filter(hotRich, needsBuild);
-    Function<Review, Review.Slim> trim = new Function<Review, Review.Slim>() {
-      public Review.Slim apply(@Nullable Review input) { return input.trim(); }
-    };
-    return Collections2.transform(unhandled, trim);
+      //pages come newest first, so once a page reaches reviews that are too old the rest is too old as well
+      if (reachedCold) break;
+    }
+    if (hot.isEmpty()) return PendingReviews.empty(pages.getRequests());
+    ReviewEnricher enricher = new ReviewEnricher(this, con, concurrency);
+    List<Review.Slim> unhandled = enricher.enrich(hot);
+    return new PendingReviews(unhandled, pages.getRequests() + enricher.getRequests(), newest);
   }
 
   /* ----------------- post comment -------------------- */
@@ -245,12 +454,32 @@ public class ReviewboardOps {
     return postComment(ReviewboardConnection.fromConfiguration(), url, msg, shipIt, markdown);
   }
 
+  /**
+   * @return whether Reviewboard accepted the review; it answers 201 Created
+   */
   public boolean postComment(ReviewboardConnection con, String url, String msg, boolean shipIt, boolean markdown)
           throws IOException {
-    ensureAuthentication(con, http);
-    String postUrl = con.buildApiUrl(url, "reviews");
-    PostMethod post = new PostMethod(postUrl);
-    post.setDoAuthentication(true);
+    int status = postReview(con, url, msg, shipIt, markdown);
+    return status >= 200 && status < 300;
+  }
+
+  /**
+   * @return the HTTP status of the request
+   */
+  int postReview(ReviewboardConnection con, String url, String msg, boolean shipIt, boolean markdown)
+          throws IOException {
+    return postReview(con, url, msg, shipIt, markdown, null);
+  }
+
+  /**
+   * @param dedupeKey identifies the comment, if it is retried until it gets through; this lets a post that failed
+   * in an unclear way be retried, after checking that the comment is not on the review already
+   * @return the HTTP status of the request, or 200 if a comment with the same key was posted already
+   */
+  int postReview(final ReviewboardConnection con, final String url, final String msg, boolean shipIt, boolean markdown,
+                 final String dedupeKey) throws IOException {
+    if (dedupeKey != null && postedKeys.contains(dedupeKey)) return 200;
+    final String postUrl = con.buildApiUrl(url, "reviews");
     NameValuePair[] data = {
             new NameValuePair("body_top", msg),
             new NameValuePair("public", "true"),
@@ -262,14 +491,57 @@ public class ReviewboardOps {
       l.add(new NameValuePair("text_type",          "markdown")); //some Reviewboard versions require it
       data = l.toArray(new NameValuePair[l.size()]);
     }
-    post.setRequestBody(data);
-    int response;
-    try {
-      response = http.executeMethod(post);
-    } finally {
-      post.releaseConnection();
+    final NameValuePair[] body = data;
+    RequestPolicy.Verifier verifier = dedupeKey == null ? null : new RequestPolicy.Verifier() {
+      public boolean delivered() {
+        return hasReview(con, url, msg);
+      }
+    };
+    int response = policy.write(getSession(con), postUrl, new RequestPolicy.Request() {
+      public HttpMethod create() {
+        PostMethod post = new PostMethod(postUrl);
+        post.setRequestBody(body);
+        return post;
+      }
+    }, verifier);
+    if (dedupeKey != null && response >= 200 && response < 300) postedKeys.add(dedupeKey);
+    return response;
+  }
+
+  /**
+   * @return whether one of the latest reviews of the request was written by the user of the connection
+   * and has the given text
+   */
+  boolean hasReview(ReviewboardConnection con, String url, String msg) {
+    String reviewsUrl = con.buildApiUrl(url, "reviews") + "?max-results=" + LATEST_REVIEWS;
+    Response reviews = getResponse(con, reviewsUrl, Response.class);
+    if (reviews.count > LATEST_REVIEWS) {
+      // reviews are listed oldest first
+      reviews = getResponse(con, reviewsUrl + "&start=" + (reviews.count - LATEST_REVIEWS), Response.class);
+    }
+    if (reviews.reviews == null || reviews.reviews.array == null) return false;
+    for (Item i : reviews.reviews.array) {
+      if (i.links == null || i.links.user == null || i.bodyTop == null) continue;
+      if (con.getReviewboardUsername().equals(i.links.user.title) && msg.trim().equals(i.bodyTop.trim())) return true;
     }
-    return response == 200;
+    return false;
+  }
+
+  /* ------------------- get group members ------------------ */
+
+  /**
+   * @return user names of the members of the Reviewboard group
+   */
+  public Set<String> getGroupMembers(ReviewboardConnection con, String group) {
+    Set<String> members = new HashSet<String>();
+    String url = con.getGroupUsersUrl(group);
+    while (url != null) {
+      Response response = getResponse(con, url, Response.class);
+      if (response.users == null || response.users.array == null) break;
+      for (Item i : response.users.array) members.add(i.username);
+      url = response.links != null && response.links.next != null ? response.links.next.href : null;
+    }
+    return members;
   }
 
   /* ------------------ get repositories ----------------- */
@@ -279,21 +551,19 @@ public class ReviewboardOps {
   }
 
   public Map<String, Integer> getRepositories(ReviewboardConnection con) throws IOException, JAXBException, ParseException {
-    ensureAuthentication(con, http);
-    return getRepositories(con.getRepositoriesUrl());
+    return getRepositories(con, con.getRepositoriesUrl());
   }
 
-  private SortedMap<String, Integer> getRepositories(String url) throws IOException, JAXBException, ParseException {
-    ReviewboardConnection con = ReviewboardConnection.fromConfiguration();
-    ensureAuthentication(con, http);
-    Response response = getResponse(http, url, Response.class);
+  private SortedMap<String, Integer> getRepositories(ReviewboardConnection con, String url)
+          throws IOException, JAXBException, ParseException {
+    Response response = getResponse(con, url, Response.class);
     SortedMap<String, Integer> map = new TreeMap<String, Integer>(String.CASE_INSENSITIVE_ORDER);
     if (response.count > 0) {
       for (Item i : response.repositories.array) {
         map.put(i.name, i.id);
       }
       if (response.links.next != null) {
-        map.putAll(getRepositories(response.links.next.href));
+        map.putAll(getRepositories(con, response.links.next.href));
       }
     }
     return map;
@@ -301,28 +571,48 @@ public class ReviewboardOps {
 
   /* ------------------- unmarshalling ------------------- */
 
-  private static  <T> T getResponse(HttpClient http, String requestUrl, Class<T> clazz) {
-    GetMethod request = new GetMethod(requestUrl);
+  <T> T getResponse(ReviewboardConnection con, final String requestUrl, Class<T> clazz) {
+    // what a response contains may depend on who asks for it
+    String cacheKey = con.getReviewboardUsername() + " " + requestUrl;
+    final ResponseCache.Cached cached = cache.get(cacheKey, clazz);
+    HttpMethod request = null;
     int code;
     try {
-      request.setDoAuthentication(true);
-      request.setRequestHeader("Accept", "application/xml");
-      code = http.executeMethod(request);
+      request = policy.read(getSession(con), requestUrl, new RequestPolicy.Request() {
+        public HttpMethod create() {
+          GetMethod get = new GetMethod(requestUrl);
+          get.setRequestHeader("Accept", "application/xml");
+          if (cached != null) {
+            if (cached.etag != null) get.setRequestHeader("If-None-Match", cached.etag);
+            if (cached.lastModified != null) get.setRequestHeader("If-Modified-Since", cached.lastModified);
+          }
+          return get;
+        }
+      });
+      code = request.getStatusCode();
+      if (code == 304 && cached != null) {
+        cache.hit();
+        return clazz.cast(cached.value);
+      }
       if (code == 200) {
         InputStream res = request.getResponseBodyAsStream();
-        JAXBContext jaxbContext = JAXBContext.newInstance(clazz);
-        Unmarshaller unmarshaller = jaxbContext.createUnmarshaller();
-        InputStreamReader reader = new InputStreamReader(res);
-        return clazz.cast(unmarshaller.unmarshal(reader));
+        T value = decoder.decode(res, clazz);
+        cache.put(cacheKey, headerValue(request, "ETag"), headerValue(request, "Last-Modified"), value);
+        return value;
       }
     } catch (Exception e) {
       throw new RuntimeException(e);
     } finally {
-      request.releaseConnection();
+      if (request != null) request.releaseConnection();
     }
     throw new RuntimeException("Accessing the URL " + requestUrl + " failed with code " + code);
   }
 
+  private static String headerValue(HttpMethod method, String name) {
+    Header h = method.getResponseHeader(name);
+    return h == null ? null : h.getValue();
+  }
+
   /* ------------------ utility classes ------------------ */
 
   @XmlRootElement(name = "rsp")
@@ -338,6 +628,8 @@ public class ReviewboardOps {
     String total;
     @XmlElement
     String stat;
+    @XmlElement
+    Links links;
   }
   public static class ReviewsRequests {
     @XmlElementWrapper
@@ -374,6 +666,8 @@ public class ReviewboardOps {
     @XmlElement
     Items repositories;
     @XmlElement
+    Items users;
+    @XmlElement
     Links links;
   }
   public static class Items {
@@ -396,6 +690,12 @@ public class ReviewboardOps {
     String tool;
     @XmlElement
     String path;
+    // for users
+    @XmlElement
+    String username;
+    // for reviews
+    @XmlElement(name = "body_top")
+    String bodyTop;
   }
   public static class Links {
     @XmlElement
@@ -410,6 +710,8 @@ public class ReviewboardOps {
   public static class Repository {
     @XmlElement
     String title;
+    @XmlElement
+    String href;
   }
   public static class User {
     @XmlElement
@@ -425,11 +727,15 @@ public class ReviewboardOps {
 
     @Override
     public Date unmarshal(String v) throws Exception {
+      return parse(v);
+    }
+
+    static Date parse(String v) {
       try {
         return javax.xml.bind.DatatypeConverter.parseDateTime(v).getTime();
       } catch (IllegalArgumentException iae) { //to support Reviewboard version 1.6
         try {
-          return formatter.parse(v);
+          synchronized (formatter) { return formatter.parse(v); }
         } catch (ParseException e) {
           throw new RuntimeException(e);
         }
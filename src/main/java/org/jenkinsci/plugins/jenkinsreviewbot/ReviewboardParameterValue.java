@@ -29,8 +29,10 @@ import hudson.FilePath;
 import hudson.Launcher;
 import hudson.model.AbstractBuild;
 import hudson.model.BuildListener;
+import hudson.model.Computer;
 import hudson.model.ParameterValue;
 import hudson.model.StringParameterValue;
+import hudson.remoting.RemoteOutputStream;
 import hudson.remoting.VirtualChannel;
 import hudson.tasks.BuildWrapper;
 import hudson.util.IOException2;
@@ -40,8 +42,15 @@ import org.kohsuke.stapler.DataBoundConstructor;
 
 import java.io.*;
 import java.lang.reflect.Field;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * User: ymeymann
@@ -50,13 +59,47 @@ import java.util.Map;
 public class ReviewboardParameterValue extends ParameterValue {
 
   private final String url;
+  // captured when the build was triggered; 0 and null when the parameter was entered by hand
+  private final int diffRevision;
+  // when that diff was uploaded, in ms; 0 when not known
+  private final long diffTime;
+  private final Map<String, String> properties;
   private boolean patchFailed = false;
-  private transient volatile Map<String, String> props = null;
+  // size of the diff, once it has been fetched into the diff cache; 0 while it is not known
+  private transient volatile long diffSize = 0;
+  // review properties looked up when building, shared by all callers of buildEnvVars
+  private transient volatile PropsLookup props = null;
+
+  private static final Logger LOGGER = Logger.getLogger(ReviewboardParameterValue.class.getName());
+  private static final long PROPERTIES_TIMEOUT = 30;
+  // a failed or slow lookup is not tried again before this
+  private static final long PROPERTIES_RETRY_DELAY = 5 * 60 * 1000L;
+  private static final AtomicReferenceFieldUpdater<ReviewboardParameterValue, PropsLookup> propsUpdater =
+      AtomicReferenceFieldUpdater.newUpdater(ReviewboardParameterValue.class, PropsLookup.class, "props");
 
   @DataBoundConstructor
   public ReviewboardParameterValue(String name, String value) {
+    this(name, value, 0, null);
+  }
+
+  /**
+   * @param diffRevision revision of the diff to build, 0 for the latest one
+   * @param properties build variables describing the review request, null to look them up when building
+   */
+  public ReviewboardParameterValue(String name, String value, int diffRevision, Map<String, String> properties) {
+    this(name, value, diffRevision, null, properties);
+  }
+
+  /**
+   * @param diffTime when the diff to build was uploaded, null if not known
+   */
+  public ReviewboardParameterValue(String name, String value, int diffRevision, Date diffTime,
+                                   Map<String, String> properties) {
     super("review.url");
     url = buildReviewUrl(value);
+    this.diffRevision = diffRevision;
+    this.diffTime = diffTime == null ? 0 : diffTime.getTime();
+    this.properties = properties == null ? null : new HashMap<String, String>(properties);
   }
 
   static ReviewboardParameterValue wrap(StringParameterValue rhs) {
@@ -78,9 +121,47 @@ public class ReviewboardParameterValue extends ParameterValue {
     return url;
   }
 
+  public int getDiffRevision() {
+    return diffRevision;
+  }
+
+  /**
+   * @return when the diff to build was uploaded, in ms, or 0 if not known
+   */
+  long getDiffTime() {
+    return diffTime;
+  }
+
+  /**
+   * Whether a build with the other value would build the same diff as one with this value: both are for the same
+   * review request, and for the same diff revision unless either leaves it open, to build the latest one.
+   */
+  boolean isSameDiff(ReviewboardParameterValue other) {
+    if (other == null || url == null || !url.equals(other.url)) return false;
+    return diffRevision <= 0 || other.diffRevision <= 0 || diffRevision == other.diffRevision;
+  }
+
+  /**
+   * @return size of the diff in bytes, recorded when it was fetched into the diff cache, or 0 if not known
+   */
+  long getDiffSize() {
+    return diffSize;
+  }
+
+  void setDiffSize(long diffSize) {
+    this.diffSize = diffSize;
+  }
+
+  /**
+   * @return the review properties captured when the build was triggered, or null
+   */
+  Map<String, String> getCapturedProperties() {
+    return properties == null ? null : Collections.unmodifiableMap(properties);
+  }
+
   @Override
   public String toString() {
-    return "review.url='" + url + "'";
+    return "review.url='" + url + "'" + (diffRevision > 0 ? " (diff revision " + diffRevision + ")" : "");
   }
 
   static final String LOCATION = "patch.diff";
@@ -118,6 +199,7 @@ public class ReviewboardParameterValue extends ParameterValue {
     ReviewboardParameterValue that = (ReviewboardParameterValue) o;
 
     if (url != null ? !url.equals(that.url) : that.url != null) return false;
+    if (diffRevision != that.diffRevision) return false;
 
     return true;
   }
@@ -126,6 +208,7 @@ public class ReviewboardParameterValue extends ParameterValue {
   public int hashCode() {
     int result = super.hashCode();
     result = 31 * result + (url != null ? url.hashCode() : 0);
+    result = 31 * result + diffRevision;
     return result;
   }
 
@@ -169,30 +252,103 @@ public class ReviewboardParameterValue extends ParameterValue {
   @Override
   public void buildEnvVars(AbstractBuild<?,?> build, EnvVars env) {
     env.put("REVIEW_URL",url);
-    synchronized (this) {
-      if (props == null) {
-        try {
-          props = ReviewboardOps.getInstance().getProperties(url);
-        }
-        catch (IOException e) { e.printStackTrace(); }
+    if (properties != null) {
+      env.putAll(properties);
+      return;
+    }
+    env.putAll(getProps(null));
+  }
+
+  /**
+   * Looks the review properties up once per parameter value, without holding a lock: the first caller starts
+   * the lookup in the background, and every caller waits for that same lookup, but no longer than the timeout.
+   * After a timeout, callers stop waiting for the lookup and get no properties until it completes.
+   * A lookup that failed or timed out is kept for a while, so callers get no properties right away
+   * instead of waiting again; after that, the next caller starts another lookup.
+   *
+   * @param log where to report a failed lookup, or null for the system log
+   */
+  Map<String, String> getProps(PrintStream log) {
+    PropsLookup l = props;
+    if (l == null || l.isStale(System.currentTimeMillis())) {
+      PropsLookup created = new PropsLookup();
+      if (propsUpdater.compareAndSet(this, l, created)) Computer.threadPoolForRemoting.submit(created.task);
+      l = props;
+    }
+    if (l.failedAt != 0 && !l.succeeded) {
+      if (log != null) log.println("No properties of " + url + ", looking them up failed or took too long");
+      return Collections.emptyMap();
+    }
+    try {
+      return l.task.get(PROPERTIES_TIMEOUT, TimeUnit.SECONDS);
+    } catch (TimeoutException e) {
+      l.failed();
+      report(log, "Timed out getting properties of " + url, null);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      report(log, "Failed to get properties of " + url, e.getCause());
+    }
+    return Collections.emptyMap();
+  }
+
+  /**
+   * Looks the review properties up from Reviewboard.
+   */
+  Map<String, String> lookUpProperties() throws IOException {
+    return ReviewboardOps.getInstance().getProperties(url);
+  }
+
+  /**
+   * One lookup of the review properties, and when it failed or timed out.
+   */
+  private class PropsLookup implements Callable<Map<String, String>> {
+    final FutureTask<Map<String, String>> task = new FutureTask<Map<String, String>>(this);
+    volatile long failedAt = 0;
+    volatile boolean succeeded = false;
+
+    public Map<String, String> call() throws IOException {
+      try {
+        Map<String, String> result = lookUpProperties();
+        succeeded = true;
+        return result;
+      } catch (IOException e) {
+        failed();
+        throw e;
+      } catch (RuntimeException e) {
+        failed();
+        throw e;
       }
     }
-    if (props != null) env.putAll(props);
+
+    void failed() {
+      if (failedAt == 0) failedAt = System.currentTimeMillis();
+    }
+
+    boolean isStale(long now) {
+      return failedAt != 0 && !succeeded && now - failedAt >= PROPERTIES_RETRY_DELAY;
+    }
+  }
+
+  private static void report(PrintStream log, String message, Throwable cause) {
+    if (log == null) {
+      LOGGER.log(Level.WARNING, message, cause);
+      return;
+    }
+    log.println(message + (cause != null ? ": " + cause : ""));
   }
 
   class ReviewboardBuildWrapper extends BuildWrapper {
     @Override
     public BuildWrapper.Environment setUp(AbstractBuild build, Launcher launcher, BuildListener listener) throws IOException, InterruptedException {
       if (!StringUtils.isEmpty(url)) {
+        // looks the review properties up now, so that a failure shows in the build log
+        if (properties == null) getProps(listener.getLogger());
         FilePath patch = build.getWorkspace().child(LOCATION);
         patch.delete();
         patch.getParent().mkdirs();
-        ReviewboardOps.DiffHandle diff = ReviewboardOps.getInstance().getDiff(url);
-        try {
-          patch.copyFrom(diff.getStream()); //getDiffFile()
-          patch.copyTo(new FilePath(getLocationUnderBuild(build)));
-        } finally {
-          diff.close();
+        if (!ReviewboardNotifier.DESCRIPTOR.getDownloadDiffOnAgent() || !downloadOnAgent(build, patch, listener)) {
+          downloadOnController(build, patch);
         }
         if (patch.exists()) {
           applyPatch(listener, patch);
@@ -207,6 +363,67 @@ public class ReviewboardParameterValue extends ParameterValue {
     }
   }
 
+  private void downloadOnController(AbstractBuild build, FilePath patch) throws IOException, InterruptedException {
+    if (DiffCache.getInstance().isEnabled()) {
+      DiffCache.Entry entry = ReviewboardOps.getInstance().getCachedDiff(url, diffRevision);
+      try {
+        FilePath cached = new FilePath(entry.getFile());
+        patch.copyFrom(cached);
+        cached.copyTo(new FilePath(getLocationUnderBuild(build)));
+      } finally {
+        entry.close();
+      }
+    } else {
+      ReviewboardOps.DiffHandle diff = ReviewboardOps.getInstance().getDiff(url, diffRevision);
+      try {
+        patch.copyFrom(diff.getStream()); //getDiffFile()
+        patch.copyTo(new FilePath(getLocationUnderBuild(build)));
+      } finally {
+        diff.close();
+      }
+    }
+  }
+
+  /**
+   * Has the agent download the diff itself, writing the archive copy from the same stream.
+   * The agent authenticates with a Reviewboard session opened for this download, which is logged out
+   * once it is over; its request doesn't go through the rate limits, circuit breaker and retries of
+   * the controller's requests.
+   * @return false if the agent could not download it, e.g. because no session could be opened for it
+   *         or Reviewboard can't be reached from the agent
+   */
+  private boolean downloadOnAgent(AbstractBuild build, FilePath patch, BuildListener listener)
+          throws IOException, InterruptedException {
+    File archive = getLocationUnderBuild(build);
+    archive.getParentFile().mkdirs();
+    OutputStream out = new BufferedOutputStream(new FileOutputStream(archive));
+    ReviewboardOps.AgentDownload download = null;
+    int status;
+    try {
+      download = ReviewboardOps.getInstance().newDiffDownload(url, diffRevision, new RemoteOutputStream(out));
+      status = patch.act(download.getTask());
+    } catch (IOException e) {
+      listener.getLogger().println("Downloading the diff on the agent failed: " + e +
+          ", downloading it through the controller");
+      return false;
+    } finally {
+      out.close();
+      if (download != null) endSession(download, listener);
+    }
+    if (status == 200) return true;
+    listener.getLogger().println("Downloading the diff on the agent failed with HTTP status " + status +
+        ", downloading it through the controller");
+    return false;
+  }
+
+  private static void endSession(ReviewboardOps.AgentDownload download, BuildListener listener) {
+    try {
+      download.close();
+    } catch (IOException e) {
+      listener.getLogger().println("WARNING: " + e.getMessage());
+    }
+  }
+
   static class ApplyTask implements FilePath.FileCallable<Void> {
     private static final long serialVersionUID = 1L;
 
@@ -0,0 +1,218 @@
+/*
+Copyright (c) 2013 VMware, Inc. All Rights Reserved.
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to
+deal in the Software without restriction, including without limitation the
+rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+sell copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+IN THE SOFTWARE.
+*/
+
+
+package org.jenkinsci.plugins.jenkinsreviewbot;
+
+import hudson.Extension;
+import hudson.model.AbstractProject;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Cause;
+import hudson.model.TaskListener;
+import jenkins.model.Jenkins;
+import org.jenkinsci.plugins.jenkinsreviewbot.util.AdaptiveSchedule;
+import org.jenkinsci.plugins.jenkinsreviewbot.util.PendingReviews;
+import org.jenkinsci.plugins.jenkinsreviewbot.util.ProcessedReviews;
+import org.jenkinsci.plugins.jenkinsreviewbot.util.Review;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.*;
+
+/**
+ * Controller-wide poller: fetches the pending reviews once per cycle, for all repositories,
+ * and dispatches each of them to the jobs of the matching {@link ReviewboardRoute}s.
+ * Unlike with {@link ReviewboardPollingBuilder}, the API load does not grow with the number of jobs.
+ * How often it polls adapts to activity, see {@link AdaptiveSchedule}.
+ * The log of the last cycle is kept in <code>$JENKINS_HOME/Reviewboard polling.log</code>.
+ */
+@Extension
+public class ReviewboardPoller extends AsyncPeriodicWork {
+
+  // same as ReviewboardPollingBuilder
+  private static final long WATERMARK_OVERLAP = 10 * 60 * 1000L;
+  private static final long HOUR = 60 * 60 * 1000L;
+
+  private final AdaptiveSchedule schedule = new AdaptiveSchedule(MIN, MIN);
+
+  public ReviewboardPoller() {
+    super("Reviewboard polling");
+  }
+
+  public static ReviewboardPoller getInstance() {
+    return Jenkins.getInstance().getExtensionList(ReviewboardPoller.class).get(ReviewboardPoller.class);
+  }
+
+  public AdaptiveSchedule getSchedule() {
+    return schedule;
+  }
+
+  @Override
+  public long getRecurrencePeriod() {
+    return MIN;
+  }
+
+  @Override
+  protected void execute(TaskListener listener) throws IOException, InterruptedException {
+    ReviewboardDescriptor d = ReviewboardNotifier.DESCRIPTOR;
+    int interval = d.getPollingInterval();
+    if (interval <= 0 || d.getRoutes().isEmpty()) return;
+    schedule.setLimits(interval * MIN, d.getPollingMaxInterval() * MIN);
+    // runs every minute, but only polls when the schedule says so (with some slack for timer jitter)
+    if (!schedule.isDue(System.currentTimeMillis() + MIN / 2)) return;
+    boolean hit = false;
+    try {
+      hit = poll(d, listener.getLogger());
+    } finally {
+      schedule.polled(hit, System.currentTimeMillis());
+      listener.getLogger().println("Schedule: " + schedule);
+    }
+  }
+
+  /**
+   * @return whether any build was scheduled
+   */
+  boolean poll(ReviewboardDescriptor d, PrintStream log) throws IOException {
+    ReviewboardConnection con = ReviewboardConnection.fromConfiguration();
+    ProcessedReviews store = ProcessedReviews.forDirectory(Jenkins.getInstance().getRootDir());
+    store.expire(new Date(System.currentTimeMillis() - d.getPollingCheckBackPeriod() * HOUR));
+    Date watermark = store.getWatermark();
+    Date updatedFrom = watermark == null ? null : new Date(watermark.getTime() - WATERMARK_OVERLAP);
+    log.println("Query: " + con.getPendingReviewsUrl(d.getPollingRestrictByUser(), -1, updatedFrom));
+    PendingReviews pending;
+    try {
+      pending = ReviewboardOps.getInstance().getPendingReviews(con, d.getPollingCheckBackPeriod(),
+          d.getPollingRestrictByUser(), -1, updatedFrom, d.getEnrichmentThreads());
+    } catch (IOException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new IOException(e);
+    }
+    log.println("Got " + pending.size() + " reviews (" + pending.getApiRequests() + " API requests)");
+    List<ReviewboardRoute> routes = d.getRoutes();
+    GroupMembers groups = new GroupMembers(con);
+    ReviewDispatcher dispatcher = new ReviewDispatcher(con, new PollCause());
+    boolean hit = false;
+    AdmissionControl admission = AdmissionControl.fromConfiguration();
+    List<Review.Slim> reviews = new ArrayList<Review.Slim>(pending.getReviews());
+    Collections.sort(reviews, AdmissionControl.OLDEST_FIRST);
+    for (Review.Slim review : reviews) {
+      if (!store.isNew(review.getId(), review.getLastUpdate())) continue;
+      Set<AbstractProject> targets = new LinkedHashSet<AbstractProject>();
+      boolean missing = false;
+      try {
+        for (ReviewboardRoute route : routes) {
+          if (!route.matches(review.getProperties(), groups)) continue;
+          AbstractProject target = route.getJob();
+          if (target != null) {
+            targets.add(target);
+          } else {
+            log.println("ERROR: Job named " + route.getJobName() + " not found");
+            missing = true;
+          }
+        }
+      } catch (Exception e) {
+        // e.g. a group that cannot be looked up; the other reviews may not need it
+        log.println(review.getUrl() + ": failed to route, trying again with the next poll");
+        e.printStackTrace(log);
+        admission.hold(review.getLastUpdate());
+        continue;
+      }
+      if (missing) {
+        // the job may be back soon, e.g. while it is being renamed; its other routes wait for it
+        log.println(review.getUrl() + ": trying again with the next poll");
+        admission.hold(review.getLastUpdate());
+        continue;
+      }
+      if (targets.isEmpty()) {
+        log.println(review.getUrl() + ": no matching route");
+        continue;
+      }
+      if (!admission.admit(targets, review.getLastUpdate())) {
+        // polling again soon lets the deferred reviews in as soon as there is room
+        hit = true;
+        continue;
+      }
+      if (!store.claim(review.getId(), review.getLastUpdate())) {
+        // claimed by an overlapping poll in the meantime
+        admission.cancel(targets);
+        continue;
+      }
+      log.println(review.getUrl() + " -> " + names(targets));
+      hit = true;
+      try {
+        dispatcher.dispatch(review.getUrl(), review.getDiffRevision(), review.getLastUpdate(), review.getProperties(),
+            targets, !d.getPollingDisableAdvanceNotice());
+      } catch (RuntimeException e) {
+        // the other reviews are still scheduled, and a later poll tries this one again
+        e.printStackTrace(log);
+        store.release(review.getId(), review.getLastUpdate());
+        admission.hold(review.getLastUpdate());
+      }
+    }
+    log.println("Admission: " + admission);
+    store.advanceWatermark(admission.watermark(pending.getNewestUpdate()));
+    try {
+      dispatcher.sendNotices(log);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    return hit;
+  }
+
+  private static String names(Collection<AbstractProject> projects) {
+    StringBuilder sb = new StringBuilder();
+    for (AbstractProject p : projects) {
+      if (sb.length() > 0) sb.append(", ");
+      sb.append(p.getFullName());
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Looks up the members of each group at most once per polling cycle.
+   */
+  static class GroupMembers implements ReviewboardRoute.Groups {
+    private final ReviewboardConnection con;
+    private final Map<String, Set<String>> members = new HashMap<String, Set<String>>();
+
+    GroupMembers(ReviewboardConnection con) {
+      this.con = con;
+    }
+
+    public boolean isMember(String group, String user) throws IOException {
+      Set<String> m = members.get(group);
+      if (m == null) {
+        m = ReviewboardOps.getInstance().getGroupMembers(con, group);
+        members.put(group, m);
+      }
+      return user != null && m.contains(user);
+    }
+  }
+
+  public static class PollCause extends Cause {
+    @Override
+    public String getShortDescription() {
+      return "Review request updated on Reviewboard";
+    }
+  }
+}
@@ -22,8 +22,6 @@ IN THE SOFTWARE.
 
 package org.jenkinsci.plugins.jenkinsreviewbot;
 
-import com.google.common.base.Function;
-import com.google.common.collect.Collections2;
 import hudson.Extension;
 import hudson.Launcher;
 import hudson.init.InitMilestone;
@@ -33,11 +31,16 @@ import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.Builder;
 import hudson.util.ListBoxModel;
 import jenkins.model.Jenkins;
+import org.jenkinsci.plugins.jenkinsreviewbot.util.PendingReviews;
+import org.jenkinsci.plugins.jenkinsreviewbot.util.ProcessedReviews;
 import org.jenkinsci.plugins.jenkinsreviewbot.util.Review;
 import org.kohsuke.stapler.DataBoundConstructor;
 
-import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.PrintStream;
 import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * User: ymeymann
@@ -45,13 +48,20 @@ import java.util.*;
  */
 public class ReviewboardPollingBuilder extends Builder {
 
+  private static final Pattern reviewIdPattern = Pattern.compile("/r/(\\d+)");
+  // reviews updated this long before the newest one seen by the previous run are queried again,
+  // so that updates committed on the server while that run was querying are not missed
+  private static final long WATERMARK_OVERLAP = 10 * 60 * 1000L;
+  private static final long HOUR = 60 * 60 * 1000L;
+
   private final String reviewbotJobName;
   private final String checkBackPeriod;
   private final int reviewbotRepoId;
   private boolean restrictByUser = true;
-  private Set<String> processedReviews = new HashSet<String>();
   private final boolean disableAdvanceNotice;
-  private Map<String, Date> processedReviewDates = new HashMap<String, Date>();
+  // processed reviews are kept in ProcessedReviews now; these are only read to migrate older configurations
+  @Deprecated private Set<String> processedReviews;
+  @Deprecated private Map<String, Date> processedReviewDates;
 
   @DataBoundConstructor
   public ReviewboardPollingBuilder(String reviewbotJobName, String checkBackPeriod,
@@ -79,60 +89,34 @@ public class ReviewboardPollingBuilder extends Builder {
 
   public String getJenkinsUser() { return ReviewboardNotifier.DESCRIPTOR.getReviewboardUsername(); }
 
-  private Set<Review.Slim> getRichProcessedReviews() {
-    if (processedReviews == null) return Collections.emptySet();
-    HashSet<Review.Slim> res = new HashSet<Review.Slim>();
-    for (String r: processedReviews) {
-      res.add(new Review.Slim(r, processedReviewDates == null ? null : processedReviewDates.get(r)));
-    }
-    return res;
-  }
-
-  private void updateProcessed(Collection<Review.Slim> reviews) {
-    processedReviews = new HashSet<String>(Collections2.transform(reviews, new Function<Review.Slim, String>() {
-      public String apply(@Nullable Review.Slim input) { return input.getUrl(); }
-    }));
-    if (processedReviewDates == null) { processedReviewDates = new HashMap<String, Date>(); }
-    else { processedReviewDates.clear(); }
-    for (Review.Slim r: reviews) {
-      if (r.getLastUpdate() != null) processedReviewDates.put(r.getUrl(), r.getLastUpdate());
+  /**
+   * Moves the processed reviews remembered in the job configuration by previous versions into the store.
+   */
+  private void migrateProcessed(ProcessedReviews store) throws IOException {
+    if (processedReviews == null) return;
+    for (String url : processedReviews) {
+      Matcher m = reviewIdPattern.matcher(url);
+      if (!m.find()) continue;
+      store.record(Long.parseLong(m.group(1)), processedReviewDates == null ? null : processedReviewDates.get(url));
     }
+    processedReviews = null;
+    processedReviewDates = null;
   }
 
   @Override
   public boolean perform(AbstractBuild build, Launcher launcher, BuildListener listener) {
-    listener.getLogger().println("Looking for reviews that need building...");
-    long period = checkBackPeriod != null && !checkBackPeriod.isEmpty() ? Long.parseLong(checkBackPeriod) : 1L;
-    listener.getLogger().println("Going to check reviews updated during last " + period + " hour(s): ");
-    ReviewboardConnection con = ReviewboardConnection.fromConfiguration();
     try {
-      listener.getLogger().println("Query: " + con.getPendingReviewsUrl(restrictByUser, reviewbotRepoId));
-      Collection<Review.Slim> reviews = ReviewboardOps.getInstance().getPendingReviews(con, period, restrictByUser, reviewbotRepoId);
-      listener.getLogger().println("Got " + reviews.size() + " reviews");
-      Set<Review.Slim> unprocessedReviews = new HashSet<Review.Slim>(reviews);
-      if (processedReviews != null) { //apparently, it is null when de-serialized from previous version of plugin... DUH!
-        Set<Review.Slim> richProcessed = getRichProcessedReviews();
-        unprocessedReviews.removeAll(richProcessed);
-      }
-      listener.getLogger().println("After removing previously processed, left with " + unprocessedReviews.size() + " reviews");
-      updateProcessed(reviews);
-      if (unprocessedReviews.isEmpty()) return true;
-      Cause cause = new Cause.UpstreamCause((Run<?,?>)build); //TODO not sure what should be put here
-      listener.getLogger().println("Setting cause to this build");
+      ProcessedReviews store = ProcessedReviews.forDirectory(build.getProject().getRootDir());
+      migrateProcessed(store);
       Jenkins jenkins = Jenkins.getInstance();
       AbstractProject project = jenkins.getItem(reviewbotJobName, jenkins, AbstractProject.class);
       if (project == null) {
         listener.getLogger().println("ERROR: Job named " + reviewbotJobName + " not found");
         return false;
       }
-      listener.getLogger().println("Found job " + reviewbotJobName);
-      for (Review.Slim review : unprocessedReviews) {
-        listener.getLogger().println(review.getUrl());
-        if (!disableAdvanceNotice) ReviewboardOps.getInstance().postComment(con, review.getUrl(), Messages.ReviewboardPollingBuilder_Notice(), false, false);
-        project.scheduleBuild2(project.getQuietPeriod(),
-            cause,
-            new ParametersAction(new ReviewboardParameterValue("review.url", review.getUrl())));
-      }
+      Cause cause = new Cause.UpstreamCause((Run<?,?>)build); //TODO not sure what should be put here
+      poll(store, project, cause, checkBackPeriod, restrictByUser, reviewbotRepoId,
+          !disableAdvanceNotice, listener.getLogger());
       return true;
     } catch (Exception e) {
       e.printStackTrace(listener.getLogger());
@@ -140,6 +124,67 @@ public class ReviewboardPollingBuilder extends Builder {
     }
   }
 
+  /**
+   * Looks for reviews that need building and schedules a build of the given job for each of them.
+   * Shared by this builder and {@link ReviewboardPollingTrigger}.
+   *
+   * @param store where processed reviews and the watermark are kept
+   */
+  static void poll(ProcessedReviews store, AbstractProject project, Cause cause, String checkBackPeriod,
+                   boolean restrictByUser, int repoId, boolean notice, PrintStream log) throws Exception {
+    log.println("Looking for reviews that need building...");
+    long period = checkBackPeriod != null && !checkBackPeriod.isEmpty() ? Long.parseLong(checkBackPeriod) : 1L;
+    log.println("Going to check reviews updated during last " + period + " hour(s): ");
+    ReviewboardConnection con = ReviewboardConnection.fromConfiguration();
+    store.expire(new Date(System.currentTimeMillis() - period * HOUR));
+    Date watermark = store.getWatermark();
+    Date updatedFrom = watermark == null ? null : new Date(watermark.getTime() - WATERMARK_OVERLAP);
+    if (updatedFrom != null) log.println("Only checking reviews updated since " + updatedFrom);
+    log.println("Query: " + con.getPendingReviewsUrl(restrictByUser, repoId, updatedFrom));
+    PendingReviews pending = ReviewboardOps.getInstance().getPendingReviews(con, period, restrictByUser, repoId,
+        updatedFrom, ReviewboardNotifier.DESCRIPTOR.getEnrichmentThreads());
+    Collection<Review.Slim> reviews = pending.getReviews();
+    log.println("Got " + reviews.size() + " reviews (" + pending.getApiRequests() + " API requests)");
+    log.println("Response cache: " + ReviewboardOps.getInstance().getResponseCache());
+    List<Review.Slim> unprocessedReviews = new ArrayList<Review.Slim>();
+    for (Review.Slim review : reviews) {
+      if (store.isNew(review.getId(), review.getLastUpdate())) unprocessedReviews.add(review);
+    }
+    log.println("After removing previously processed, left with " + unprocessedReviews.size() + " reviews");
+    if (unprocessedReviews.isEmpty()) {
+      store.advanceWatermark(pending.getNewestUpdate());
+      return;
+    }
+    log.println("Scheduling " + project.getFullName());
+    AdmissionControl admission = AdmissionControl.fromConfiguration();
+    Collections.sort(unprocessedReviews, AdmissionControl.OLDEST_FIRST);
+    Set<AbstractProject> targets = Collections.singleton(project);
+    ReviewDispatcher dispatcher = new ReviewDispatcher(con, cause);
+    for (Review.Slim review : unprocessedReviews) {
+      if (!admission.admit(targets, review.getLastUpdate())) continue;
+      // an overlapping run of this job may have triggered it in the meantime
+      if (!store.claim(review.getId(), review.getLastUpdate())) {
+        admission.cancel(targets);
+        continue;
+      }
+      log.println(review.getUrl());
+      try {
+        dispatcher.dispatch(review.getUrl(), review.getDiffRevision(), review.getLastUpdate(), review.getProperties(),
+            targets, notice);
+      } catch (RuntimeException e) {
+        // the other reviews are still scheduled, and a later poll tries this one again
+        e.printStackTrace(log);
+        store.release(review.getId(), review.getLastUpdate());
+        admission.hold(review.getLastUpdate());
+      }
+    }
+    log.println("Admission: " + admission);
+    store.advanceWatermark(admission.watermark(pending.getNewestUpdate()));
+    // every build is in the queue before the first notice is posted
+    int failed = dispatcher.sendNotices(log);
+    if (failed > 0) log.println(failed + " notice(s) could not be posted");
+  }
+
   @Override
   public DescriptorImpl getDescriptor() {
     return (DescriptorImpl) super.getDescriptor();
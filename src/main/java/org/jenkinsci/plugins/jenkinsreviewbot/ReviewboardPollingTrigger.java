@@ -0,0 +1,199 @@
+/*
+Copyright (c) 2013 VMware, Inc. All Rights Reserved.
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to
+deal in the Software without restriction, including without limitation the
+rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+sell copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+IN THE SOFTWARE.
+*/
+
+
+package org.jenkinsci.plugins.jenkinsreviewbot;
+
+import antlr.ANTLRException;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AbstractProject;
+import hudson.model.Action;
+import hudson.model.Item;
+import hudson.security.ACL;
+import hudson.triggers.Trigger;
+import hudson.triggers.TriggerDescriptor;
+import hudson.util.ListBoxModel;
+import hudson.util.StreamTaskListener;
+import jenkins.model.Jenkins;
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
+import org.apache.commons.io.FileUtils;
+import org.jenkinsci.plugins.jenkinsreviewbot.util.ProcessedReviews;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Polls Reviewboard for reviews that need building and builds them in the job it is configured on.
+ * Does the same as {@link ReviewboardPollingBuilder}, but on a controller thread instead of in a build,
+ * so polling takes no executor and leaves no build records. The log of the last poll is shown on the job page.
+ */
+public class ReviewboardPollingTrigger extends Trigger<AbstractProject<?,?>> {
+
+  private static final Logger LOGGER = Logger.getLogger(ReviewboardPollingTrigger.class.getName());
+  static final String LOG_FILE_NAME = "reviewbot-polling.log";
+  private static final ExecutorService executor = Executors.newFixedThreadPool(2,
+      new ThreadFactoryBuilder().setNameFormat("Reviewboard polling %d").setDaemon(true).build());
+
+  private final String checkBackPeriod;
+  private final int reviewbotRepoId;
+  private final boolean restrictByUser;
+  private final boolean disableAdvanceNotice;
+  private transient AtomicBoolean polling = new AtomicBoolean();
+
+  @DataBoundConstructor
+  public ReviewboardPollingTrigger(String spec, String checkBackPeriod, String reviewbotRepoId,
+                                   boolean restrictByUser, boolean disableAdvanceNotice) throws ANTLRException {
+    super(spec);
+    this.reviewbotRepoId = reviewbotRepoId == null || reviewbotRepoId.isEmpty() ? -1 : Integer.parseInt(reviewbotRepoId);
+    this.restrictByUser = restrictByUser;
+    this.checkBackPeriod = checkBackPeriod;
+    this.disableAdvanceNotice = disableAdvanceNotice;
+  }
+
+  private Object readResolve() {
+    polling = new AtomicBoolean();
+    return this;
+  }
+
+  public String getCheckBackPeriod() {
+    return checkBackPeriod;
+  }
+
+  public int getReviewbotRepoId() { return reviewbotRepoId; }
+
+  public boolean getRestrictByUser() { return restrictByUser; }
+
+  public boolean getDisableAdvanceNotice() { return disableAdvanceNotice; }
+
+  @Override
+  public void run() {
+    if (job == null || job.isDisabled()) return;
+    // called on the cron thread, which must not wait for Reviewboard; a poll still running is not overlapped
+    if (!polling.compareAndSet(false, true)) {
+      LOGGER.fine("Previous poll for " + job.getFullName() + " is still running");
+      return;
+    }
+    final AbstractProject<?,?> project = job;
+    executor.submit(new Runnable() {
+      public void run() {
+        // the pooled thread carries no identity; without SYSTEM the job lookups see nothing on a secured instance
+        SecurityContext old = ACL.impersonate(ACL.SYSTEM);
+        try {
+          poll(project);
+        } finally {
+          SecurityContextHolder.setContext(old);
+          polling.set(false);
+        }
+      }
+    });
+  }
+
+  private void poll(AbstractProject<?,?> project) {
+    StreamTaskListener listener = null;
+    try {
+      listener = new StreamTaskListener(getLogFile(project));
+      long start = System.currentTimeMillis();
+      ProcessedReviews store = ProcessedReviews.forDirectory(project.getRootDir());
+      ReviewboardPollingBuilder.poll(store, project, new ReviewboardPoller.PollCause(), checkBackPeriod,
+          restrictByUser, reviewbotRepoId, !disableAdvanceNotice, listener.getLogger());
+      listener.getLogger().println("Done. Took " + Util.getTimeSpanString(System.currentTimeMillis() - start));
+    } catch (Exception e) {
+      if (listener != null) e.printStackTrace(listener.getLogger());
+      LOGGER.log(Level.WARNING, "Failed to poll Reviewboard for " + project.getFullName(), e);
+    } finally {
+      if (listener != null) {
+        try { listener.close(); } catch (IOException e) { /* ignore */ }
+      }
+    }
+  }
+
+  static File getLogFile(AbstractProject<?,?> project) {
+    return new File(project.getRootDir(), LOG_FILE_NAME);
+  }
+
+  @Override
+  public Collection<? extends Action> getProjectActions() {
+    return job == null ? Collections.<Action>emptyList() : Collections.singleton(new PollingLogAction(job));
+  }
+
+  /**
+   * Shows the log of the last poll.
+   */
+  public static class PollingLogAction implements Action {
+    private final AbstractProject<?,?> owner;
+
+    PollingLogAction(AbstractProject<?,?> owner) {
+      this.owner = owner;
+    }
+
+    public AbstractProject<?,?> getOwner() {
+      return owner;
+    }
+
+    public String getIconFileName() {
+      return "clipboard.png";
+    }
+
+    public String getDisplayName() {
+      return Messages.ReviewboardPollingTrigger_LogDisplayName();
+    }
+
+    public String getUrlName() {
+      return "reviewboardPollLog";
+    }
+
+    public String getLog() throws IOException {
+      File log = getLogFile(owner);
+      return log.exists() ? FileUtils.readFileToString(log) : "";
+    }
+  }
+
+  @Extension
+  public static final class DescriptorImpl extends TriggerDescriptor {
+
+    @Override
+    public boolean isApplicable(Item item) {
+      return item instanceof AbstractProject;
+    }
+
+    @Override
+    public String getDisplayName() {
+      return Messages.ReviewboardPollingTrigger_DisplayName();
+    }
+
+    public ListBoxModel doFillReviewbotRepoIdItems() {
+      return Jenkins.getInstance().getDescriptorByType(ReviewboardPollingBuilder.DescriptorImpl.class)
+          .doFillReviewbotRepoIdItems();
+    }
+  }
+}
@@ -0,0 +1,117 @@
+/*
+Copyright (c) 2013 VMware, Inc. All Rights Reserved.
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to
+deal in the Software without restriction, including without limitation the
+rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+sell copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+IN THE SOFTWARE.
+*/
+
+
+package org.jenkinsci.plugins.jenkinsreviewbot;
+
+import hudson.Extension;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.AbstractProject;
+import hudson.model.Descriptor;
+import hudson.util.ListBoxModel;
+import jenkins.model.Jenkins;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Entry of the routing table of the shared poller: review requests of a repository, optionally restricted
+ * to a branch pattern and to the members of a Reviewboard group, are built by the given job.
+ */
+public class ReviewboardRoute extends AbstractDescribableImpl<ReviewboardRoute> {
+
+  private final int repoId;
+  private final String branchPattern;
+  private final String submitterGroup;
+  private final String jobName;
+  private transient volatile Pattern branchRegex;
+
+  @DataBoundConstructor
+  public ReviewboardRoute(String repoId, String branchPattern, String submitterGroup, String jobName) {
+    this.repoId = repoId == null || repoId.isEmpty() ? -1 : Integer.parseInt(repoId);
+    this.branchPattern = branchPattern == null ? "" : branchPattern.trim();
+    this.submitterGroup = submitterGroup == null ? "" : submitterGroup.trim();
+    this.jobName = jobName;
+  }
+
+  public int getRepoId() { return repoId; }
+
+  public String getBranchPattern() { return branchPattern; }
+
+  public String getSubmitterGroup() { return submitterGroup; }
+
+  public String getJobName() { return jobName; }
+
+  public AbstractProject getJob() {
+    Jenkins jenkins = Jenkins.getInstance();
+    return jenkins.getItem(jobName, jenkins, AbstractProject.class);
+  }
+
+  /**
+   * @param properties review properties, as returned by {@link ReviewboardOps#getProperties(ReviewboardOps.ReviewItem)}
+   */
+  public boolean matches(Map<String, String> properties, Groups groups) throws IOException {
+    if (repoId >= 0 && !String.valueOf(repoId).equals(properties.get("REVIEW_REPOSITORY_ID"))) return false;
+    if (!branchPattern.isEmpty()) {
+      Pattern p = branchRegex;
+      if (p == null) branchRegex = p = Pattern.compile(branchPattern);
+      String branch = properties.get("REVIEW_BRANCH");
+      if (branch == null || !p.matcher(branch).matches()) return false;
+    }
+    return submitterGroup.isEmpty() || groups.isMember(submitterGroup, properties.get("REVIEW_USER"));
+  }
+
+  @Override
+  public String toString() {
+    return (repoId < 0 ? "any repository" : "repository " + repoId) +
+        (branchPattern.isEmpty() ? "" : ", branch " + branchPattern) +
+        (submitterGroup.isEmpty() ? "" : ", group " + submitterGroup) + " -> " + jobName;
+  }
+
+  /**
+   * Membership of Reviewboard groups, looked up at most once per group by the caller.
+   */
+  public interface Groups {
+    boolean isMember(String group, String user) throws IOException;
+  }
+
+  @Extension
+  public static class DescriptorImpl extends Descriptor<ReviewboardRoute> {
+
+    @Override
+    public String getDisplayName() {
+      return Messages.ReviewboardRoute_DisplayName();
+    }
+
+    public ListBoxModel doFillRepoIdItems() {
+      return Jenkins.getInstance().getDescriptorByType(ReviewboardPollingBuilder.DescriptorImpl.class)
+          .doFillReviewbotRepoIdItems();
+    }
+
+    public ListBoxModel doFillJobNameItems() {
+      return Jenkins.getInstance().getDescriptorByType(ReviewboardPollingBuilder.DescriptorImpl.class)
+          .doFillReviewbotJobNameItems();
+    }
+  }
+}
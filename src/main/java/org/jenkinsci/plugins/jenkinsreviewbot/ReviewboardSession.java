@@ -0,0 +1,228 @@
+/*
+Copyright (c) 2013 VMware, Inc. All Rights Reserved.
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to
+deal in the Software without restriction, including without limitation the
+rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+sell copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+IN THE SOFTWARE.
+*/
+
+
+package org.jenkinsci.plugins.jenkinsreviewbot;
+
+import org.apache.commons.httpclient.Cookie;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpConnectionManager;
+import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.HttpState;
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.UsernamePasswordCredentials;
+import org.apache.commons.httpclient.auth.BasicScheme;
+import org.apache.commons.httpclient.methods.DeleteMethod;
+import org.apache.commons.httpclient.methods.GetMethod;
+
+import java.io.IOException;
+
+/**
+ * An authenticated session with one Reviewboard server, as one user.
+ * Reviewboard answers a successful login with an <code>rbsessionid</code> cookie, which is kept in this session's
+ * own {@link HttpState} and sent with every following request, so credentials are only checked once.
+ * The login happens on first use, and again only when the server rejects the cookie with 401.
+ */
+class ReviewboardSession {
+
+  private final ReviewboardConnection con;
+  private final HttpClient http;
+  private final HttpState state;
+  private final RequestGuard guard;
+  // bumped on every successful login, so that concurrent requests rejected with the same stale cookie log in once
+  private volatile int generation = 0;
+
+  ReviewboardSession(ReviewboardConnection con, HttpClient http) {
+    this(con, http, new HttpState());
+  }
+
+  ReviewboardSession(ReviewboardConnection con, HttpClient http, HttpState state) {
+    this(con, http, state, new RequestGuard(con.getReviewboardURL(), RequestGuard.Settings.DEFAULT));
+  }
+
+  ReviewboardSession(ReviewboardConnection con, HttpClient http, RequestGuard guard) {
+    this(con, http, new HttpState(), guard);
+  }
+
+  private ReviewboardSession(ReviewboardConnection con, HttpClient http, HttpState state, RequestGuard guard) {
+    this.con = con;
+    this.http = http;
+    this.state = state;
+    this.guard = guard;
+  }
+
+  ReviewboardConnection getConnection() {
+    return con;
+  }
+
+  /**
+   * @return the connection pool of this session, or null if its client was not created with one
+   */
+  ConnectionPool getPool() {
+    HttpConnectionManager manager = http.getHttpConnectionManager();
+    return manager instanceof ConnectionPool ? (ConnectionPool) manager : null;
+  }
+
+  /**
+   * @return the socket timeout of this session's connections in ms, 0 meaning none
+   */
+  int getSocketTimeout() {
+    ConnectionPool pool = getPool();
+    return pool != null ? pool.getParams().getSoTimeout() : 0;
+  }
+
+  /**
+   * @return a session of its own, with a separate cookie, that shares this session's connections and request guard
+   */
+  ReviewboardSession fork() {
+    return new ReviewboardSession(con, http, new HttpState(), guard);
+  }
+
+  /**
+   * Ends this session on the server, if it was logged in, so its cookie is of no more use.
+   * @return whether the server ended it
+   */
+  boolean logout() throws IOException {
+    if (generation == 0) return true;
+    DeleteMethod delete = new DeleteMethod(con.getReviewboardURL() + "api/session/");
+    try {
+      int status = execute(delete);
+      return status >= 200 && status < 300;
+    } finally {
+      delete.releaseConnection();
+      state.clearCookies();
+    }
+  }
+
+  void close() {
+    ConnectionPool pool = getPool();
+    if (pool != null) pool.shutdown();
+  }
+
+  /**
+   * Executes the method with this session's cookie, logging in first if needed.
+   * If the cookie turns out to be expired, logs in again and repeats the method once.
+   * The method waits for the server's rate limit, and fails fast while its circuit breaker is open;
+   * I/O errors, server errors and 429 answers count as failures towards opening it, but a method that was
+   * aborted by its caller, such as the losing attempt of a hedged read, does not count at all.
+   * @return the HTTP status code
+   */
+  int execute(HttpMethod method) throws IOException {
+    return execute(method, Long.MAX_VALUE);
+  }
+
+  /**
+   * Like {@link #execute(HttpMethod)}, but fails at once if the rate limit would hold the method past the deadline.
+   * @param deadline time by which the method has to be sent, <code>Long.MAX_VALUE</code> for none
+   */
+  int execute(HttpMethod method, long deadline) throws IOException {
+    String name = method.getName();
+    guard.before(!"GET".equals(name) && !"HEAD".equals(name), deadline);
+    long start = System.currentTimeMillis();
+    boolean failed = true;
+    boolean aborted = false;
+    try {
+      int status = send(method);
+      failed = status >= 500 || status == 429;
+      return status;
+    } catch (IOException e) {
+      aborted = method.isAborted();
+      throw e;
+    } finally {
+      if (aborted) guard.abandoned();
+      else guard.after(failed, System.currentTimeMillis() - start);
+    }
+  }
+
+  private int send(HttpMethod method) throws IOException {
+    int seen = ensureAuthenticated();
+    method.setDoAuthentication(false);
+    int status = http.executeMethod(null, method, state);
+    if (status != HttpStatus.SC_UNAUTHORIZED) return status;
+    method.releaseConnection();
+    authenticate(seen);
+    return http.executeMethod(null, method, state);
+  }
+
+  /**
+   * @return the value of a <code>Cookie</code> header that authenticates requests made outside of this session,
+   * e.g. on an agent, as this session
+   */
+  String getCookieHeader() throws IOException {
+    ensureAuthenticated();
+    StringBuilder sb = new StringBuilder();
+    for (Cookie c : state.getCookies()) {
+      if (sb.length() > 0) sb.append("; ");
+      sb.append(c.getName()).append('=').append(c.getValue());
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Logs in if this session has not done so yet.
+   * @return the current generation
+   */
+  int ensureAuthenticated() throws IOException {
+    int seen = generation;
+    return seen == 0 ? authenticate(seen) : seen;
+  }
+
+  /**
+   * Logs in unless another thread already did so since <code>seen</code> generation.
+   * @return the current generation
+   */
+  private synchronized int authenticate(int seen) throws IOException {
+    if (generation != seen) return generation;
+    int status = login();
+    if (status != HttpStatus.SC_OK) throw new IOException("Reviewboard login failed with HTTP status=" + status);
+    return ++generation;
+  }
+
+  /**
+   * Sends the credentials to <code>api/session/</code>, which sets a fresh session cookie.
+   * An I/O failure is retried once, as the first request on a pooled connection may hit a connection
+   * the server has already closed.
+   * @return the HTTP status code
+   */
+  int login() throws IOException {
+    try {
+      return sendLogin();
+    } catch (IOException e) {
+      return sendLogin();
+    }
+  }
+
+  private int sendLogin() throws IOException {
+    GetMethod get = new GetMethod(con.getReviewboardURL() + "api/session/");
+    try {
+      get.setDoAuthentication(false);
+      UsernamePasswordCredentials credentials =
+          new UsernamePasswordCredentials(con.getReviewboardUsername(), con.getReviewboardPassword());
+      get.setRequestHeader("Authorization", BasicScheme.authenticate(credentials, "UTF-8"));
+      state.clearCookies();
+      return http.executeMethod(null, get, state);
+    } finally {
+      get.releaseConnection();
+    }
+  }
+
+}
@@ -0,0 +1,436 @@
+/*
+Copyright (c) 2013 VMware, Inc. All Rights Reserved.
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to
+deal in the Software without restriction, including without limitation the
+rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+sell copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+IN THE SOFTWARE.
+*/
+
+
+package org.jenkinsci.plugins.jenkinsreviewbot;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AbstractProject;
+import hudson.model.Cause;
+import hudson.model.Project;
+import hudson.model.UnprotectedRootAction;
+import hudson.security.ACL;
+import hudson.security.csrf.CrumbExclusion;
+import hudson.tasks.Builder;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.jenkinsci.plugins.jenkinsreviewbot.util.ProcessedReviews;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+import org.kohsuke.stapler.interceptor.RequirePOST;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Receives Reviewboard WebHook notifications at <code>/reviewboard-webhook/</code> and schedules the review
+ * jobs of the matching repository right away, so that no polling job has to scan the server to find them.
+ * <p>
+ * The WebHook has to be configured in Reviewboard with a secret equal to the one in the global configuration,
+ * and with JSON (or form-data) encoding. Accepted notifications are handed to a single worker thread through a
+ * bounded queue; when the queue is full the request is refused with 503, and Reviewboard can deliver it later.
+ */
+@Extension
+public class ReviewboardWebHook implements UnprotectedRootAction {
+
+  static final String URL_NAME = "reviewboard-webhook";
+  static final int QUEUE_CAPACITY = 200;
+  private static final int MAX_PAYLOAD = 1024 * 1024;
+
+  private static final Logger LOGGER = Logger.getLogger(ReviewboardWebHook.class.getName());
+
+  private final BlockingQueue<Event> events = new ArrayBlockingQueue<Event>(QUEUE_CAPACITY);
+  private Thread worker = null;
+
+  public String getIconFileName() {
+    return null;
+  }
+
+  public String getDisplayName() {
+    return null;
+  }
+
+  public String getUrlName() {
+    return URL_NAME;
+  }
+
+  @RequirePOST
+  public void doIndex(StaplerRequest req, StaplerResponse rsp) throws IOException {
+    String secret = ReviewboardNotifier.DESCRIPTOR.getWebhookSecret();
+    if (secret == null || secret.isEmpty()) {
+      rsp.sendError(HttpServletResponse.SC_NOT_FOUND, "Reviewboard WebHook is not enabled");
+      return;
+    }
+    if (req.getContentLength() > MAX_PAYLOAD) {
+      rsp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Payload too large");
+      return;
+    }
+    byte[] body = readPayload(req.getInputStream());
+    if (body == null) {
+      rsp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Payload too large");
+      return;
+    }
+    if (!verifySignature(body, req.getHeader("X-Hub-Signature"), secret)) {
+      rsp.sendError(HttpServletResponse.SC_FORBIDDEN, "Invalid signature");
+      return;
+    }
+    String eventName = req.getHeader("X-ReviewBoard-Event");
+    if (!"review_request_published".equals(eventName) && !"review_request_updated".equals(eventName)) {
+      // e.g. the "ping" sent when the WebHook is created
+      rsp.setStatus(HttpServletResponse.SC_NO_CONTENT);
+      return;
+    }
+    Event event;
+    try {
+      event = parse(eventName, body, req.getContentType());
+    } catch (Exception e) {
+      rsp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Cannot parse payload: " + e.getMessage());
+      return;
+    }
+    if (event == null) {
+      rsp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Payload has no review request");
+      return;
+    }
+    event.remoteHost = req.getRemoteAddr();
+    ensureWorker();
+    if (!events.offer(event)) {
+      LOGGER.warning("WebHook queue is full, refusing " + eventName + " of review request " + event.reviewId);
+      rsp.setHeader("Retry-After", "60");
+      rsp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Too many pending notifications");
+      return;
+    }
+    rsp.setStatus(HttpServletResponse.SC_ACCEPTED);
+  }
+
+  /**
+   * @return the body, or null if it is longer than the accepted maximum
+   */
+  private static byte[] readPayload(InputStream in) throws IOException {
+    byte[] body = IOUtils.toByteArray(new BoundedInputStream(in, MAX_PAYLOAD + 1));
+    return body.length > MAX_PAYLOAD ? null : body;
+  }
+
+  /**
+   * Checks the <code>X-Hub-Signature</code> header, which Reviewboard sets to <code>sha1=</code> followed by
+   * the hex-encoded HMAC-SHA1 of the body, keyed with the WebHook secret.
+   */
+  static boolean verifySignature(byte[] body, String header, String secret) {
+    if (header == null || !header.startsWith("sha1=")) return false;
+    try {
+      Mac mac = Mac.getInstance("HmacSHA1");
+      mac.init(new SecretKeySpec(secret.getBytes("UTF-8"), "HmacSHA1"));
+      String expected = Util.toHexString(mac.doFinal(body));
+      String actual = header.substring("sha1=".length()).toLowerCase();
+      // constant time comparison, so the signature can't be guessed byte by byte
+      return MessageDigest.isEqual(expected.getBytes("US-ASCII"), actual.getBytes("US-ASCII"));
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException(e);
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  static Event parse(String eventName, byte[] body, String contentType) throws IOException {
+    String text = new String(body, "UTF-8");
+    if (contentType != null && contentType.startsWith("application/x-www-form-urlencoded")) {
+      text = formField(text, "payload");
+      if (text == null) return null;
+    }
+    JSONObject payload = JSONObject.fromObject(text);
+    JSONObject request = payload.optJSONObject("review_request");
+    if (request == null || request.isNullObject()) return null;
+    long id = request.optLong("id", -1);
+    if (id < 0) return null;
+    JSONObject links = request.optJSONObject("links");
+    JSONObject repository = links == null ? null : links.optJSONObject("repository");
+    String repositoryHref = repository == null || repository.isNullObject() ? null : repository.optString("href");
+    int repositoryId = ReviewboardConnection.repositoryId(repositoryHref);
+    // the payload describes the review request the same way the API does, so the build doesn't need to ask again
+    ReviewboardOps.ReviewItem item = new ReviewboardOps.ReviewItem();
+    item.branch = request.optString("branch", null);
+    item.links = new ReviewboardOps.Links();
+    item.links.repository = new ReviewboardOps.Repository();
+    item.links.repository.title = linkTitle(links, "repository");
+    item.links.repository.href = repositoryHref;
+    item.links.submitter = new ReviewboardOps.User();
+    item.links.submitter.title = linkTitle(links, "submitter");
+    Event event = new Event(eventName, id, repositoryId, ReviewboardOps.getProperties(item));
+    linkTitles(request, "target_people", event.targetPeople);
+    linkTitles(request, "target_groups", event.targetGroups);
+    return event;
+  }
+
+  private static void linkTitles(JSONObject request, String name, Set<String> titles) {
+    JSONArray array = request.optJSONArray(name);
+    if (array == null) return;
+    for (int i = 0; i < array.size(); i++) {
+      Object o = array.get(i);
+      if (o instanceof JSONObject && !((JSONObject) o).isNullObject()) {
+        String title = ((JSONObject) o).optString("title", null);
+        if (title != null) titles.add(title);
+      } else if (o instanceof String) {
+        titles.add((String) o);
+      }
+    }
+  }
+
+  private static String linkTitle(JSONObject links, String name) {
+    JSONObject link = links == null ? null : links.optJSONObject(name);
+    return link == null || link.isNullObject() ? null : link.optString("title", null);
+  }
+
+  private static String formField(String form, String name) throws UnsupportedEncodingException {
+    for (String pair : form.split("&")) {
+      int eq = pair.indexOf('=');
+      if (eq > 0 && name.equals(URLDecoder.decode(pair.substring(0, eq), "UTF-8"))) {
+        return URLDecoder.decode(pair.substring(eq + 1), "UTF-8");
+      }
+    }
+    return null;
+  }
+
+  /* ------------------------ dispatching ------------------------ */
+
+  private synchronized void ensureWorker() {
+    if (worker != null && worker.isAlive()) return;
+    worker = new Thread("Reviewboard WebHook dispatcher") {
+      @Override
+      public void run() {
+        ACL.impersonate(ACL.SYSTEM);
+        while (true) {
+          try {
+            dispatch(events.take());
+          } catch (InterruptedException e) {
+            return;
+          } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Failed to dispatch Reviewboard WebHook notification", e);
+          }
+        }
+      }
+    };
+    worker.setDaemon(true);
+    worker.start();
+  }
+
+  /**
+   * Schedules the review job of every polling builder configured for the repository of the review request
+   * (or for any repository), and of every matching route of the shared poller,
+   * the same way a run of that polling builder or of the poller would.
+   * <p>
+   * The latest diff is claimed in the store of that polling job, or of the shared poller, before its jobs are
+   * scheduled, so an update that doesn't upload a new diff (a new description or reviewer) builds nothing, and
+   * a diff the polls already found isn't built again.
+   * Polling builders and routes that only consider reviews sent to the Jenkins user skip review requests
+   * it is not a target person of, directly or through a target group.
+   */
+  private void dispatch(Event event) throws IOException {
+    ReviewboardConnection con = ReviewboardConnection.fromConfiguration();
+    String url = con.reviewNumberToUrl(String.valueOf(event.reviewId));
+    Jenkins jenkins = Jenkins.getInstance();
+    Map<ProcessedReviews, Claim> claims = new LinkedHashMap<ProcessedReviews, Claim>();
+    ReviewboardPoller.GroupMembers groups = new ReviewboardPoller.GroupMembers(con);
+    // looked up once the first builder or route needs it
+    Boolean sentToUser = null;
+    for (Project<?,?> poller : jenkins.getAllItems(Project.class)) {
+      for (Builder b : poller.getBuilders()) {
+        if (!(b instanceof ReviewboardPollingBuilder)) continue;
+        ReviewboardPollingBuilder builder = (ReviewboardPollingBuilder) b;
+        int repoId = builder.getReviewbotRepoId();
+        if (repoId >= 0 && repoId != event.repositoryId) continue;
+        if (builder.getRestrictByUser()) {
+          if (sentToUser == null) sentToUser = event.isSentTo(con.getReviewboardUsername(), groups);
+          if (!sentToUser) continue;
+        }
+        AbstractProject target = jenkins.getItem(builder.getReviewbotJobName(), jenkins, AbstractProject.class);
+        if (target == null) {
+          LOGGER.warning("Job named " + builder.getReviewbotJobName() + " configured in " + poller.getFullName() + " not found");
+          continue;
+        }
+        claim(claims, poller.getRootDir()).add(target, !builder.getDisableAdvanceNotice());
+      }
+    }
+    ReviewboardDescriptor d = ReviewboardNotifier.DESCRIPTOR;
+    if (d.getPollingRestrictByUser() && !d.getRoutes().isEmpty() && sentToUser == null) {
+      sentToUser = event.isSentTo(con.getReviewboardUsername(), groups);
+    }
+    for (ReviewboardRoute route : d.getRoutes()) {
+      if (d.getPollingRestrictByUser() && !sentToUser) break;
+      if (!route.matches(event.properties, groups)) continue;
+      AbstractProject target = route.getJob();
+      if (target == null) {
+        LOGGER.warning("Job named " + route.getJobName() + " of route " + route + " not found");
+        continue;
+      }
+      claim(claims, jenkins.getRootDir()).add(target, !d.getPollingDisableAdvanceNotice());
+    }
+    if (claims.isEmpty()) {
+      LOGGER.fine("No job is configured for repository " + event.repositoryId + " of " + url);
+      return;
+    }
+    String diffsUrl = con.getDiffsUrl(event.reviewId);
+    ReviewboardOps.Response diffs = ReviewboardOps.getInstance().getResponse(con, diffsUrl, ReviewboardOps.Response.class);
+    int diffRevision = diffs.count;
+    if (diffRevision < 1) {
+      LOGGER.fine("No diff uploaded yet to " + url);
+      return;
+    }
+    if (diffs.diffs == null || diffs.diffs.array == null || diffs.diffs.array.size() < diffRevision) {
+      // the latest diff is not on the first page
+      diffs = ReviewboardOps.getInstance().getResponse(con,
+          diffsUrl + "?start=" + (diffRevision - 1) + "&max-results=1", ReviewboardOps.Response.class);
+      if (diffs.diffs == null || diffs.diffs.array == null || diffs.diffs.array.isEmpty()) {
+        LOGGER.warning("Diff revision " + diffRevision + " of " + url + " not found");
+        return;
+      }
+    }
+    // the timestamp of the same diff the revision names, which the polls claim too
+    List<ReviewboardOps.Item> page = diffs.diffs.array;
+    Date diffTime = page.get(page.size() == diffRevision ? diffRevision - 1 : 0).timestamp;
+    Set<AbstractProject> targets = new LinkedHashSet<AbstractProject>();
+    boolean notice = false;
+    for (Map.Entry<ProcessedReviews, Claim> e : claims.entrySet()) {
+      if (!e.getKey().claim(event.reviewId, diffTime)) continue;
+      e.getValue().claimed = true;
+      for (AbstractProject target : e.getValue().targets) {
+        if (targets.add(target) && e.getValue().notice.contains(target)) notice = true;
+      }
+    }
+    if (targets.isEmpty()) {
+      LOGGER.fine("Diff revision " + diffRevision + " of " + url + " was already built");
+      return;
+    }
+    Cause cause = new Cause.RemoteCause(event.remoteHost, "Reviewboard " + event.name + " " + url);
+    LOGGER.info("Scheduling " + targets.size() + " job(s) for diff revision " + diffRevision + " of " + url);
+    ReviewDispatcher dispatcher = new ReviewDispatcher(con, cause);
+    try {
+      dispatcher.dispatch(url, diffRevision, diffTime, event.properties, targets, notice);
+    } catch (RuntimeException e) {
+      // the next poll or notification tries this diff again
+      for (Map.Entry<ProcessedReviews, Claim> c : claims.entrySet()) {
+        if (c.getValue().claimed) c.getKey().release(event.reviewId, diffTime);
+      }
+      throw e;
+    }
+    try {
+      dispatcher.sendNotices(null);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static Claim claim(Map<ProcessedReviews, Claim> claims, File dir) throws IOException {
+    ProcessedReviews store = ProcessedReviews.forDirectory(dir);
+    Claim claim = claims.get(store);
+    if (claim == null) {
+      claim = new Claim();
+      claims.put(store, claim);
+    }
+    return claim;
+  }
+
+  /**
+   * Jobs scheduled for a review when its diff is claimed in one store.
+   */
+  private static class Claim {
+    final Set<AbstractProject> targets = new LinkedHashSet<AbstractProject>();
+    final Set<AbstractProject> notice = new LinkedHashSet<AbstractProject>();
+    boolean claimed;
+
+    void add(AbstractProject target, boolean announce) {
+      targets.add(target);
+      if (announce) notice.add(target);
+    }
+  }
+
+  static class Event {
+    final String name;
+    final long reviewId;
+    final int repositoryId;
+    final Map<String, String> properties;
+    final Set<String> targetPeople = new HashSet<String>();
+    final Set<String> targetGroups = new HashSet<String>();
+    String remoteHost;
+
+    Event(String name, long reviewId, int repositoryId, Map<String, String> properties) {
+      this.name = name;
+      this.reviewId = reviewId;
+      this.repositoryId = repositoryId;
+      this.properties = properties;
+    }
+
+    /**
+     * Whether the review request is sent to the user, the same way the <code>to-users</code> filter of
+     * the polls decides it: the user is a target person, or a member of a target group.
+     */
+    boolean isSentTo(String user, ReviewboardRoute.Groups groups) throws IOException {
+      if (targetPeople.contains(user)) return true;
+      for (String group : targetGroups) {
+        if (groups.isMember(group, user)) return true;
+      }
+      return false;
+    }
+  }
+
+  /**
+   * WebHook deliveries can't carry a crumb.
+   */
+  @Extension
+  public static class CrumbExclusionImpl extends CrumbExclusion {
+    @Override
+    public boolean process(HttpServletRequest req, HttpServletResponse resp, FilterChain chain)
+            throws IOException, ServletException {
+      String pathInfo = req.getPathInfo();
+      if (pathInfo != null && pathInfo.startsWith("/" + URL_NAME + "/")) {
+        chain.doFilter(req, resp);
+        return true;
+      }
+      return false;
+    }
+  }
+
+}
@@ -0,0 +1,151 @@
+/*
+Copyright (c) 2013 VMware, Inc. All Rights Reserved.
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to
+deal in the Software without restriction, including without limitation the
+rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+sell copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+IN THE SOFTWARE.
+*/
+
+
+package org.jenkinsci.plugins.jenkinsreviewbot;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Holds a downloaded body of any size with bounded heap usage: up to a threshold it is kept in memory,
+ * beyond that it is written to a temporary file, which is deleted on {@link #close()}.
+ */
+class SpillBuffer implements Closeable {
+
+  static final int DEFAULT_THRESHOLD = 1024 * 1024;
+  private static final int CHUNK = 8192;
+
+  private final int threshold;
+  private Memory memory = null;
+  private File file = null;
+  private RandomAccessFile raf = null;
+  private long size = 0;
+
+  SpillBuffer(int threshold) {
+    this.threshold = Math.max(0, threshold);
+  }
+
+  /**
+   * Reads the stream to its end, without closing it.
+   */
+  void readFrom(InputStream in) throws IOException {
+    Memory mem = new Memory(Math.min(threshold, CHUNK));
+    OutputStream out = mem;
+    try {
+      byte[] buf = new byte[CHUNK];
+      int n;
+      while ((n = in.read(buf)) != -1) {
+        if (out == mem && mem.size() + n > threshold) {
+          file = File.createTempFile("reviewbot-diff", ".tmp");
+          out = new BufferedOutputStream(new FileOutputStream(file), CHUNK);
+          mem.writeTo(out);
+          mem = null;
+        }
+        out.write(buf, 0, n);
+        size += n;
+      }
+    } finally {
+      if (out != mem) out.close();
+    }
+    memory = mem;
+  }
+
+  long size() {
+    return size;
+  }
+
+  boolean isSpilled() {
+    return file != null;
+  }
+
+  /**
+   * @return the temporary file holding the content, or null while it is kept in memory
+   */
+  File getFile() {
+    return file;
+  }
+
+  InputStream getInputStream() throws IOException {
+    if (memory != null) return memory.getInputStream();
+    return new BufferedInputStream(new FileInputStream(file), CHUNK);
+  }
+
+  /**
+   * @return a read-only channel positioned at the start; the content is spilled to disk first if needed
+   */
+  FileChannel getChannel() throws IOException {
+    if (file == null) {
+      file = File.createTempFile("reviewbot-diff", ".tmp");
+      OutputStream out = new FileOutputStream(file);
+      try {
+        memory.writeTo(out);
+      } finally {
+        out.close();
+      }
+      memory = null;
+    }
+    if (raf == null) raf = new RandomAccessFile(file, "r");
+    FileChannel channel = raf.getChannel();
+    channel.position(0);
+    return channel;
+  }
+
+  /**
+   * @return a read-only view of the content; a spilled content is memory mapped rather than read into the heap
+   */
+  ByteBuffer map() throws IOException {
+    if (memory != null) return memory.view();
+    if (size > Integer.MAX_VALUE) throw new IOException("Content of " + size + " bytes is too large to map");
+    return getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+  }
+
+  public void close() throws IOException {
+    memory = null;
+    try {
+      if (raf != null) raf.close();
+    } finally {
+      raf = null;
+      if (file != null && !file.delete()) file.deleteOnExit();
+      file = null;
+    }
+  }
+
+  /**
+   * Gives access to the content without copying it.
+   */
+  private static class Memory extends ByteArrayOutputStream {
+    Memory(int size) {
+      super(size);
+    }
+
+    InputStream getInputStream() {
+      return new ByteArrayInputStream(buf, 0, count);
+    }
+
+    ByteBuffer view() {
+      return ByteBuffer.wrap(buf, 0, count).slice().asReadOnlyBuffer();
+    }
+  }
+
+}
@@ -0,0 +1,252 @@
+/*
+Copyright (c) 2013 VMware, Inc. All Rights Reserved.
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to
+deal in the Software without restriction, including without limitation the
+rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+sell copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+IN THE SOFTWARE.
+*/
+
+package org.jenkinsci.plugins.jenkinsreviewbot;
+
+import org.jenkinsci.plugins.jenkinsreviewbot.ReviewboardOps.*;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+
+import static javax.xml.stream.XMLStreamConstants.END_ELEMENT;
+import static javax.xml.stream.XMLStreamConstants.START_ELEMENT;
+
+/**
+ * Hand-written StAX reader for the responses read on the polling path
+ * ({@link Response}, {@link ReviewsResponse} and {@link ReviewRequest}).
+ * Only the elements the plugin actually looks at are decoded, everything else is skipped.
+ * Other classes are delegated to the fallback decoder.
+ */
+class StaxResponseDecoder extends ResponseDecoder {
+
+  private static final XMLInputFactory factory = createFactory();
+
+  private final ResponseDecoder fallback;
+
+  StaxResponseDecoder(ResponseDecoder fallback) {
+    this.fallback = fallback;
+  }
+
+  private static XMLInputFactory createFactory() {
+    XMLInputFactory f = XMLInputFactory.newInstance();
+    f.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, false);
+    f.setProperty(XMLInputFactory.IS_COALESCING, true);
+    f.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    return f;
+  }
+
+  @Override
+  <T> T decode(InputStream in, Class<T> clazz) throws IOException {
+    if (clazz != Response.class && clazz != ReviewsResponse.class && clazz != ReviewRequest.class) {
+      return fallback.decode(in, clazz);
+    }
+    try {
+      XMLStreamReader r = factory.createXMLStreamReader(in);
+      try {
+        r.nextTag(); // <rsp>
+        Object res = clazz == Response.class ? readResponse(r) :
+                     clazz == ReviewsResponse.class ? readReviewsResponse(r) :
+                     readReviewRequest(r);
+        return clazz.cast(res);
+      } finally {
+        r.close();
+      }
+    } catch (XMLStreamException e) {
+      throw new IOException("Failed to parse " + clazz.getSimpleName(), e);
+    } catch (NumberFormatException e) {
+      throw new IOException("Failed to parse " + clazz.getSimpleName(), e);
+    }
+  }
+
+  /* ------------------- response types ------------------ */
+
+  private static Response readResponse(XMLStreamReader r) throws XMLStreamException {
+    Response res = new Response();
+    while (nextChild(r)) {
+      String name = r.getLocalName();
+      if ("total_results".equals(name)) res.count = Integer.parseInt(text(r).trim());
+      else if ("diffs".equals(name)) res.diffs = readItems(r);
+      else if ("reviews".equals(name)) res.reviews = readItems(r);
+      else if ("repositories".equals(name)) res.repositories = readItems(r);
+      else if ("users".equals(name)) res.users = readItems(r);
+      else if ("links".equals(name)) res.links = readLinks(r);
+      else skip(r);
+    }
+    return res;
+  }
+
+  private static ReviewsResponse readReviewsResponse(XMLStreamReader r) throws XMLStreamException {
+    ReviewsResponse res = new ReviewsResponse();
+    while (nextChild(r)) {
+      String name = r.getLocalName();
+      if ("review_requests".equals(name)) res.requests = readReviewsRequests(r);
+      else if ("total_results".equals(name)) res.total = text(r);
+      else if ("stat".equals(name)) res.stat = text(r);
+      else if ("links".equals(name)) res.links = readLinks(r);
+      else skip(r);
+    }
+    return res;
+  }
+
+  private static ReviewRequest readReviewRequest(XMLStreamReader r) throws XMLStreamException {
+    ReviewRequest res = new ReviewRequest();
+    while (nextChild(r)) {
+      if ("review_request".equals(r.getLocalName())) res.request = readReviewItem(r);
+      else skip(r);
+    }
+    return res;
+  }
+
+  /* ------------------- nested elements ----------------- */
+
+  private static ReviewsRequests readReviewsRequests(XMLStreamReader r) throws XMLStreamException {
+    ReviewsRequests res = new ReviewsRequests();
+    while (nextChild(r)) {
+      if ("array".equals(r.getLocalName())) {
+        res.array = new ArrayList<ReviewItem>();
+        while (nextChild(r)) {
+          if ("item".equals(r.getLocalName())) res.array.add(readReviewItem(r));
+          else skip(r);
+        }
+      } else {
+        skip(r);
+      }
+    }
+    return res;
+  }
+
+  private static ReviewItem readReviewItem(XMLStreamReader r) throws XMLStreamException {
+    ReviewItem res = new ReviewItem();
+    while (nextChild(r)) {
+      String name = r.getLocalName();
+      if ("last_updated".equals(name)) res.lastUpdated = MyDateAdapter.parse(text(r).trim());
+      else if ("branch".equals(name)) res.branch = text(r);
+      else if ("id".equals(name)) res.id = Long.parseLong(text(r).trim());
+      else if ("links".equals(name)) res.links = readLinks(r);
+      else skip(r);
+    }
+    return res;
+  }
+
+  private static Items readItems(XMLStreamReader r) throws XMLStreamException {
+    Items res = new Items();
+    while (nextChild(r)) {
+      if ("array".equals(r.getLocalName())) {
+        res.array = new ArrayList<Item>();
+        while (nextChild(r)) {
+          if ("item".equals(r.getLocalName())) res.array.add(readItem(r));
+          else skip(r);
+        }
+      } else {
+        skip(r);
+      }
+    }
+    return res;
+  }
+
+  private static Item readItem(XMLStreamReader r) throws XMLStreamException {
+    Item res = new Item();
+    while (nextChild(r)) {
+      String name = r.getLocalName();
+      if ("timestamp".equals(name)) res.timestamp = MyDateAdapter.parse(text(r).trim());
+      else if ("links".equals(name)) res.links = readLinks(r);
+      else if ("id".equals(name)) res.id = Integer.parseInt(text(r).trim());
+      else if ("name".equals(name)) res.name = text(r);
+      else if ("username".equals(name)) res.username = text(r);
+      else if ("body_top".equals(name)) res.bodyTop = text(r);
+      else skip(r);
+    }
+    return res;
+  }
+
+  private static Links readLinks(XMLStreamReader r) throws XMLStreamException {
+    Links res = new Links();
+    while (nextChild(r)) {
+      String name = r.getLocalName();
+      if ("user".equals(name)) {
+        res.user = new User();
+        res.user.title = readTitle(r);
+      } else if ("submitter".equals(name)) {
+        res.submitter = new User();
+        res.submitter.title = readTitle(r);
+      } else if ("repository".equals(name)) {
+        res.repository = new Repository();
+        while (nextChild(r)) {
+          if ("title".equals(r.getLocalName())) res.repository.title = text(r);
+          else if ("href".equals(r.getLocalName())) res.repository.href = text(r);
+          else skip(r);
+        }
+      } else if ("next".equals(name)) {
+        res.next = new Link();
+        while (nextChild(r)) {
+          if ("href".equals(r.getLocalName())) res.next.href = text(r);
+          else skip(r);
+        }
+      } else {
+        skip(r);
+      }
+    }
+    return res;
+  }
+
+  private static String readTitle(XMLStreamReader r) throws XMLStreamException {
+    String title = null;
+    while (nextChild(r)) {
+      if ("title".equals(r.getLocalName())) title = text(r);
+      else skip(r);
+    }
+    return title;
+  }
+
+  /* --------------------- navigation -------------------- */
+
+  /**
+   * Moves to the next child of the current element.
+   * @return false when the end of the current element has been reached instead
+   */
+  private static boolean nextChild(XMLStreamReader r) throws XMLStreamException {
+    while (r.hasNext()) {
+      int event = r.next();
+      if (event == START_ELEMENT) return true;
+      if (event == END_ELEMENT) return false;
+    }
+    return false;
+  }
+
+  private static String text(XMLStreamReader r) throws XMLStreamException {
+    return r.getElementText();
+  }
+
+  private static void skip(XMLStreamReader r) throws XMLStreamException {
+    int depth = 1;
+    while (depth > 0 && r.hasNext()) {
+      int event = r.next();
+      if (event == START_ELEMENT) depth++;
+      else if (event == END_ELEMENT) depth--;
+    }
+  }
+
+}
@@ -0,0 +1,105 @@
+/*
+Copyright (c) 2013 VMware, Inc. All Rights Reserved.
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to
+deal in the Software without restriction, including without limitation the
+rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+sell copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+IN THE SOFTWARE.
+*/
+
+
+package org.jenkinsci.plugins.jenkinsreviewbot;
+
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Actionable;
+import hudson.model.Executor;
+import hudson.model.InvisibleAction;
+import hudson.model.ParameterValue;
+import hudson.model.ParametersAction;
+import hudson.model.Queue;
+import hudson.model.Result;
+import jenkins.model.Jenkins;
+
+import java.util.logging.Logger;
+
+/**
+ * Finds the queued and running builds of a review request that apply an older diff revision than a newly
+ * scheduled one, and stops them: nobody is interested in their results anymore, and they hold executors.
+ * Builds scheduled by polling or by the WebHook name their diff revision, so they can stop and be stopped this way;
+ * builds of an unknown revision, triggered by hand, are left alone and stop nothing.
+ */
+final class SupersededBuilds {
+
+  private static final Logger LOGGER = Logger.getLogger(SupersededBuilds.class.getName());
+
+  private SupersededBuilds() {}
+
+  /**
+   * @param location review url, as returned by {@link ReviewboardParameterValue#getLocation()}
+   * @return the number of builds that were cancelled or aborted
+   */
+  static int cancel(AbstractProject<?,?> project, String location, int diffRevision) {
+    if (diffRevision <= 0) return 0;
+    int stopped = 0;
+    Queue queue = Jenkins.getInstance().getQueue();
+    for (Queue.Item item : queue.getItems(project)) {
+      if (isSuperseded(item, location, diffRevision) && queue.cancel(item)) {
+        LOGGER.info("Cancelled queued build of " + project.getFullName() + " for " + location +
+            ", superseded by diff revision " + diffRevision);
+        stopped++;
+      }
+    }
+    AbstractBuild<?,?> build = project.getLastBuild();
+    if (build != null && !build.isBuilding()) build = build.getPreviousBuildInProgress();
+    for (; build != null; build = build.getPreviousBuildInProgress()) {
+      if (!isSuperseded(build, location, diffRevision)) continue;
+      Executor executor = build.getExecutor();
+      if (executor == null) continue;
+      // one note for all the stopped builds is posted by the caller, not one failure per build
+      build.addAction(new Superseded(diffRevision));
+      executor.interrupt(Result.ABORTED);
+      LOGGER.info("Aborted " + build.getFullDisplayName() + " for " + location +
+          ", superseded by diff revision " + diffRevision);
+      stopped++;
+    }
+    return stopped;
+  }
+
+  private static boolean isSuperseded(Actionable queuedOrRunning, String location, int diffRevision) {
+    ParametersAction parameters = queuedOrRunning.getAction(ParametersAction.class);
+    ParameterValue value = parameters == null ? null : parameters.getParameter("review.url");
+    if (!(value instanceof ReviewboardParameterValue)) return false;
+    ReviewboardParameterValue review = (ReviewboardParameterValue) value;
+    return review.getDiffRevision() > 0 && review.getDiffRevision() < diffRevision &&
+        location.equals(review.getLocation());
+  }
+
+  /**
+   * Marks a build aborted because a newer diff revision was scheduled.
+   */
+  static class Superseded extends InvisibleAction {
+    private final int byRevision;
+
+    Superseded(int byRevision) {
+      this.byRevision = byRevision;
+    }
+
+    public int getByRevision() {
+      return byRevision;
+    }
+  }
+}
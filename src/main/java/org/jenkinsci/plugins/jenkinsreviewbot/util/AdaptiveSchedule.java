@@ -0,0 +1,75 @@
+package org.jenkinsci.plugins.jenkinsreviewbot.util;
+
+/**
+ * Decides when to poll next, based on whether recent polls found anything to build.
+ * <p>
+ * A poll that finds new reviews sets the interval back to the floor, so the reviews that usually follow
+ * (more revisions, more submitters at work) are picked up quickly. Every poll that finds nothing doubles
+ * the interval, up to the ceiling, so idle nights and weekends cost few requests.
+ */
+public class AdaptiveSchedule {
+
+  // weight of the latest poll in the hit rate
+  private static final double HIT_RATE_WEIGHT = 0.1;
+
+  private long floor;
+  private long ceiling;
+  private long interval;
+  private long nextPoll = 0;
+  private double hitRate = 0;
+  private long polls = 0;
+
+  /**
+   * @param floor shortest interval between polls, in ms
+   * @param ceiling longest interval between polls, in ms; at most the floor means a fixed interval
+   */
+  public AdaptiveSchedule(long floor, long ceiling) {
+    this.floor = floor;
+    this.ceiling = Math.max(floor, ceiling);
+    this.interval = floor;
+  }
+
+  public synchronized void setLimits(long floor, long ceiling) {
+    this.floor = floor;
+    this.ceiling = Math.max(floor, ceiling);
+    if (interval < this.floor || interval > this.ceiling) {
+      nextPoll -= interval;
+      interval = Math.max(this.floor, Math.min(interval, this.ceiling));
+      nextPoll += interval;
+    }
+  }
+
+  public synchronized boolean isDue(long now) {
+    return now >= nextPoll;
+  }
+
+  /**
+   * @param hit whether the poll found reviews to build
+   */
+  public synchronized void polled(boolean hit, long now) {
+    polls++;
+    hitRate = hitRate * (1 - HIT_RATE_WEIGHT) + (hit ? HIT_RATE_WEIGHT : 0);
+    interval = hit ? floor : Math.min(interval * 2, ceiling);
+    nextPoll = now + interval;
+  }
+
+  public synchronized long getInterval() {
+    return interval;
+  }
+
+  public synchronized long getNextPoll() {
+    return nextPoll;
+  }
+
+  /**
+   * @return share of recent polls that found reviews to build, weighting recent polls more
+   */
+  public synchronized double getHitRate() {
+    return hitRate;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format("interval=%ds, hit rate=%.0f%%, polls=%d", interval / 1000, hitRate * 100, polls);
+  }
+}
@@ -0,0 +1,126 @@
+package org.jenkinsci.plugins.jenkinsreviewbot.util;
+
+import java.io.IOException;
+
+/**
+ * Stops calling a service that keeps failing, and tries it again after a pause.
+ * <p>
+ * While <em>closed</em>, calls go through and consecutive failures are counted; a call slower than the slow call
+ * limit counts as a failure too. Once the count reaches the threshold the breaker <em>opens</em> and rejects every
+ * call for the open duration. After that it is <em>half-open</em>: one call is let through as a probe, and its
+ * outcome closes the breaker again or keeps it open for another period.
+ */
+public class CircuitBreaker {
+
+  public enum State { CLOSED, OPEN, HALF_OPEN }
+
+  private int failureThreshold;
+  private long slowCall;
+  private long openDuration;
+
+  private State state = State.CLOSED;
+  private int failures = 0;
+  private long openedAt = 0;
+  private boolean probing = false;
+  private long trips = 0;
+  private long rejected = 0;
+
+  /**
+   * @param failureThreshold consecutive failures that open the breaker; zero or less disables it
+   * @param slowCall ms after which a call counts as failed; zero or less means latency is not checked
+   * @param openDuration ms the breaker stays open before a probe is let through
+   */
+  public CircuitBreaker(int failureThreshold, long slowCall, long openDuration) {
+    configure(failureThreshold, slowCall, openDuration);
+  }
+
+  public synchronized void configure(int failureThreshold, long slowCall, long openDuration) {
+    this.failureThreshold = failureThreshold;
+    this.slowCall = slowCall;
+    this.openDuration = Math.max(0, openDuration);
+    if (failureThreshold <= 0) close();
+  }
+
+  /**
+   * @return whether a call may be made now; every allowed call must be followed by
+   * {@link #onSuccess}, {@link #onFailure} or {@link #onAbandoned}
+   */
+  public synchronized boolean allowRequest(long now) {
+    switch (state) {
+      case CLOSED:
+        return true;
+      case OPEN:
+        if (now - openedAt < openDuration) break;
+        state = State.HALF_OPEN;
+        probing = false;
+        // fall through
+      case HALF_OPEN:
+        if (probing) break;
+        probing = true;
+        return true;
+    }
+    rejected++;
+    return false;
+  }
+
+  /**
+   * Checks {@link #allowRequest} and throws if the call may not be made.
+   */
+  public void check(long now, String name) throws OpenException {
+    if (!allowRequest(now)) throw new OpenException(name + " is failing, calls are suspended: " + this);
+  }
+
+  public synchronized void onSuccess(long latency, long now) {
+    if (slowCall > 0 && latency > slowCall) {
+      onFailure(now);
+    } else if (state != State.OPEN) {
+      close();
+    }
+  }
+
+  public synchronized void onFailure(long now) {
+    if (failureThreshold <= 0) return;
+    failures++;
+    if (state == State.HALF_OPEN || failures >= failureThreshold) {
+      if (state != State.OPEN) trips++;
+      state = State.OPEN;
+      openedAt = now;
+      probing = false;
+    }
+  }
+
+  /**
+   * A call the caller gave up on, e.g. one of two hedged calls, counts neither way; if it was the probe,
+   * the next call is let through instead.
+   */
+  public synchronized void onAbandoned() {
+    if (state == State.HALF_OPEN) probing = false;
+  }
+
+  public synchronized State getState() {
+    return state;
+  }
+
+  private void close() {
+    state = State.CLOSED;
+    failures = 0;
+    probing = false;
+  }
+
+  @Override
+  public synchronized String toString() {
+    if (failureThreshold <= 0) return "disabled";
+    return state.name().toLowerCase().replace('_', '-') + ", " + failures + " consecutive failures, opened "
+        + trips + " times, " + rejected + " calls rejected";
+  }
+
+  /**
+   * Thrown instead of making a call while the breaker is open.
+   */
+  public static class OpenException extends IOException {
+    public OpenException(String message) {
+      super(message);
+    }
+  }
+
+}
@@ -0,0 +1,94 @@
+package org.jenkinsci.plugins.jenkinsreviewbot.util;
+
+import java.util.Arrays;
+
+/**
+ * A hash map from long to long, kept in two primitive arrays with linear probing.
+ * {@link Long#MIN_VALUE} can't be used as a key. Not thread-safe.
+ */
+public class LongLongMap {
+
+  private static final long FREE = Long.MIN_VALUE;
+
+  private long[] keys;
+  private long[] values;
+  private int size = 0;
+
+  public LongLongMap() {
+    this(16);
+  }
+
+  public LongLongMap(int expectedSize) {
+    int capacity = 16;
+    while (capacity < expectedSize * 2) capacity <<= 1;
+    allocate(capacity);
+  }
+
+  private void allocate(int capacity) {
+    keys = new long[capacity];
+    values = new long[capacity];
+    Arrays.fill(keys, FREE);
+  }
+
+  private int slot(long key) {
+    long h = key * 0x9E3779B97F4A7C15L;
+    int mask = keys.length - 1;
+    int i = (int) (h ^ (h >>> 32)) & mask;
+    while (keys[i] != FREE && keys[i] != key) i = (i + 1) & mask;
+    return i;
+  }
+
+  public boolean containsKey(long key) {
+    return keys[slot(key)] == key;
+  }
+
+  public long get(long key, long defaultValue) {
+    int i = slot(key);
+    return keys[i] == key ? values[i] : defaultValue;
+  }
+
+  public void put(long key, long value) {
+    if (key == FREE) throw new IllegalArgumentException("Unsupported key " + key);
+    int i = slot(key);
+    if (keys[i] != key) {
+      if ((size + 1) * 2 > keys.length) {
+        grow();
+        i = slot(key);
+      }
+      keys[i] = key;
+      size++;
+    }
+    values[i] = value;
+  }
+
+  private void grow() {
+    long[] oldKeys = keys;
+    long[] oldValues = values;
+    allocate(oldKeys.length * 2);
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldKeys[i] != FREE) {
+        int j = slot(oldKeys[i]);
+        keys[j] = oldKeys[i];
+        values[j] = oldValues[i];
+      }
+    }
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Receives the entries of a map, in no particular order.
+   */
+  public interface Visitor {
+    void visit(long key, long value);
+  }
+
+  public void forEach(Visitor visitor) {
+    for (int i = 0; i < keys.length; i++) {
+      if (keys[i] != FREE) visitor.visit(keys[i], values[i]);
+    }
+  }
+
+}
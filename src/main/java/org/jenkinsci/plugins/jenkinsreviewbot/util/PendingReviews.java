@@ -0,0 +1,50 @@
+package org.jenkinsci.plugins.jenkinsreviewbot.util;
+
+import com.google.common.collect.ImmutableList;
+
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Immutable result of a single pending reviews query: the reviews that need building,
+ * together with the number of Reviewboard API requests it took to find them.
+ */
+public class PendingReviews {
+  private final List<Review.Slim> reviews;
+  private final int apiRequests;
+  private final Date newestUpdate;
+
+  public PendingReviews(List<Review.Slim> reviews, int apiRequests, Date newestUpdate) {
+    this.reviews = ImmutableList.copyOf(reviews);
+    this.apiRequests = apiRequests;
+    this.newestUpdate = newestUpdate;
+  }
+
+  public static PendingReviews empty(int apiRequests) {
+    return new PendingReviews(ImmutableList.<Review.Slim>of(), apiRequests, null);
+  }
+
+  public List<Review.Slim> getReviews() {
+    return reviews;
+  }
+
+  public int getApiRequests() {
+    return apiRequests;
+  }
+
+  /**
+   * @return the most recent last_updated time among all the review requests seen by the query,
+   *         or null if there were none
+   */
+  public Date getNewestUpdate() {
+    return newestUpdate;
+  }
+
+  public int size() {
+    return reviews.size();
+  }
+
+  public boolean isEmpty() {
+    return reviews.isEmpty();
+  }
+}
@@ -0,0 +1,294 @@
+package org.jenkinsci.plugins.jenkinsreviewbot.util;
+
+import java.io.*;
+import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Remembers, per review request id, the timestamp of the last diff a build was triggered for, and the watermark
+ * of the polls.
+ * <p>
+ * Entries are appended to a binary file (pairs of longs) under the polling job directory, so recording a review
+ * costs one small write and reloading after a restart reads back what was recorded before it. When the file holds
+ * many superseded records it is compacted, by writing the current entries to a new file that replaces it.
+ * Entries older than the check-back window of the polls are dropped by {@link #expire}, as no poll can find
+ * their reviews any more. The watermark is kept in a small file of its own.
+ * All updates go through one instance per directory, so overlapping polling builds never claim the same diff twice;
+ * the instance of a directory that is deleted or moved, with its job, is dropped by {@link #forget}.
+ */
+public class ProcessedReviews {
+
+  public static final String FILE_NAME = "reviewbot-processed.bin";
+  static final String WATERMARK_FILE = "reviewbot-polling-watermark";
+  private static final String OLD_WATERMARK_FILE = "reviewbot-watermark";
+  // earlier versions kept the watermark in the binary file, as a record with this key
+  private static final long LEGACY_WATERMARK_KEY = -1L;
+  // entries are kept at least this long, to allow for the clock of Reviewboard being ahead
+  private static final long MIN_RETENTION = 24 * 60 * 60 * 1000L;
+  private static final int RECORD_SIZE = 16;
+  private static final int COMPACTION_SLACK = 1024;
+
+  private static final Logger LOGGER = Logger.getLogger(ProcessedReviews.class.getName());
+  private static final ConcurrentMap<File, ProcessedReviews> instances = new ConcurrentHashMap<File, ProcessedReviews>();
+
+  private final File file;
+  private final File watermarkFile;
+  private LongLongMap handled = new LongLongMap();
+  private long records = 0;
+  private long watermark = Long.MIN_VALUE;
+  private boolean forgotten = false;
+
+  /**
+   * @return the store kept in the given (job) directory, loading it on first use
+   */
+  public static ProcessedReviews forDirectory(File dir) throws IOException {
+    File file = new File(dir, FILE_NAME).getAbsoluteFile();
+    ProcessedReviews store = instances.get(file);
+    if (store == null) {
+      ProcessedReviews loaded = new ProcessedReviews(file);
+      store = instances.putIfAbsent(file, loaded);
+      if (store == null) store = loaded;
+    }
+    return store;
+  }
+
+  /**
+   * Drops the instance of a directory, e.g. because its job was deleted; it can't be updated any more.
+   */
+  public static void forget(File dir) {
+    ProcessedReviews store = instances.remove(new File(dir, FILE_NAME).getAbsoluteFile());
+    if (store != null) store.close();
+  }
+
+  /**
+   * Drops the instances of directories that are gone, e.g. because their job was renamed.
+   */
+  public static void forgetMissing() {
+    for (File f : instances.keySet()) {
+      if (!f.getParentFile().isDirectory()) forget(f.getParentFile());
+    }
+  }
+
+  ProcessedReviews(File file) throws IOException {
+    this.file = file;
+    this.watermarkFile = new File(file.getParentFile(), WATERMARK_FILE);
+    load();
+    loadWatermark();
+  }
+
+  private synchronized void close() {
+    forgotten = true;
+  }
+
+  private void load() throws IOException {
+    if (!file.exists()) return;
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    try {
+      long complete = file.length() / RECORD_SIZE;
+      for (long i = 0; i < complete; i++) {
+        handled.put(in.readLong(), in.readLong());
+      }
+      records = complete;
+    } finally {
+      in.close();
+    }
+    if (file.length() % RECORD_SIZE != 0) {
+      // a write was cut short, e.g. by a crash; the complete records are still good
+      LOGGER.warning("Dropping incomplete record at the end of " + file);
+      compact();
+    }
+  }
+
+  private void loadWatermark() throws IOException {
+    if (watermarkFile.exists()) watermark = Math.max(watermark, readWatermark(watermarkFile));
+    boolean migrate = handled.containsKey(LEGACY_WATERMARK_KEY);
+    if (migrate) {
+      watermark = Math.max(watermark, handled.get(LEGACY_WATERMARK_KEY, Long.MIN_VALUE));
+      prune(Long.MIN_VALUE);
+    }
+    File old = new File(file.getParentFile(), OLD_WATERMARK_FILE);
+    if (old.exists()) {
+      watermark = Math.max(watermark, readWatermark(old));
+      migrate = true;
+    }
+    if (!migrate) return;
+    if (watermark != Long.MIN_VALUE) writeWatermark();
+    compact();
+    if (old.exists() && !old.delete()) LOGGER.warning("Cannot delete " + old);
+  }
+
+  private static long readWatermark(File f) {
+    try {
+      BufferedReader r = new BufferedReader(new FileReader(f));
+      try {
+        return Long.parseLong(r.readLine().trim());
+      } finally {
+        r.close();
+      }
+    } catch (Exception e) {
+      LOGGER.log(Level.WARNING, "Ignoring unreadable polling watermark " + f, e);
+      return Long.MIN_VALUE;
+    }
+  }
+
+  private void writeWatermark() throws IOException {
+    File tmp = new File(watermarkFile.getPath() + ".tmp");
+    Writer w = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+    try {
+      w.write(watermark + "\n");
+    } finally {
+      w.close();
+    }
+    replace(tmp, watermarkFile);
+  }
+
+  /**
+   * @return true if no build was claimed for this or a later diff of the review
+   */
+  public synchronized boolean isNew(long reviewId, Date diffTime) {
+    return handled.get(reviewId, Long.MIN_VALUE) < time(diffTime);
+  }
+
+  /**
+   * Atomically checks whether the diff of the review is new, and if so records it as handled.
+   * @return true if the caller should trigger the build, false if it was already claimed
+   */
+  public synchronized boolean claim(long reviewId, Date diffTime) throws IOException {
+    if (reviewId < 0) throw new IllegalArgumentException("Invalid review id " + reviewId);
+    long t = time(diffTime);
+    if (handled.get(reviewId, Long.MIN_VALUE) >= t) return false;
+    append(reviewId, t);
+    return true;
+  }
+
+  /**
+   * Gives up a claim whose builds could not be scheduled after all, so the diff is new again.
+   */
+  public synchronized void release(long reviewId, Date diffTime) throws IOException {
+    long t = time(diffTime);
+    if (handled.get(reviewId, Long.MIN_VALUE) == t) append(reviewId, t - 1);
+  }
+
+  /**
+   * Records a diff as handled without claiming it, e.g. when importing state kept elsewhere.
+   */
+  public synchronized void record(long reviewId, Date diffTime) throws IOException {
+    if (isNew(reviewId, diffTime)) append(reviewId, time(diffTime));
+  }
+
+  /**
+   * @return the newest last-update time seen by a completed poll, or null if there was none
+   */
+  public synchronized Date getWatermark() {
+    return watermark == Long.MIN_VALUE ? null : new Date(watermark);
+  }
+
+  /**
+   * Moves the watermark forward; an older time is ignored.
+   */
+  public synchronized void advanceWatermark(Date watermark) throws IOException {
+    if (watermark == null || this.watermark >= watermark.getTime()) return;
+    checkOpen();
+    this.watermark = watermark.getTime();
+    writeWatermark();
+  }
+
+  /**
+   * Forgets the reviews whose last handled diff is older than the given time, i.e. than the check-back window
+   * of the polls; entries are kept for a day at least.
+   * @return the number of entries dropped
+   */
+  public synchronized int expire(Date before) throws IOException {
+    long cutoff = Math.min(time(before), System.currentTimeMillis() - MIN_RETENTION);
+    int dropped = prune(cutoff);
+    if (dropped > 0) {
+      checkOpen();
+      compact();
+    }
+    return dropped;
+  }
+
+  /**
+   * Keeps only the entries for reviews, handled at the cutoff or later.
+   * @return the number of entries dropped
+   */
+  private int prune(final long cutoff) {
+    final LongLongMap kept = new LongLongMap(handled.size());
+    handled.forEach(new LongLongMap.Visitor() {
+      public void visit(long key, long value) {
+        if (key >= 0 && value >= cutoff) kept.put(key, value);
+      }
+    });
+    int dropped = handled.size() - kept.size();
+    handled = kept;
+    return dropped;
+  }
+
+  public synchronized int size() {
+    return handled.size();
+  }
+
+  private void checkOpen() throws IOException {
+    if (forgotten) throw new IOException(file + " is no longer in use, its job was deleted or renamed");
+  }
+
+  private static long time(Date d) {
+    return d == null ? 0L : d.getTime();
+  }
+
+  private void append(long key, long value) throws IOException {
+    checkOpen();
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true), RECORD_SIZE));
+    try {
+      out.writeLong(key);
+      out.writeLong(value);
+    } finally {
+      out.close();
+    }
+    handled.put(key, value);
+    records++;
+    if (records > 2L * handled.size() + COMPACTION_SLACK) compact();
+  }
+
+  /**
+   * Rewrites the file with one record per review, replacing the old one only once the new one is complete.
+   */
+  synchronized void compact() throws IOException {
+    File tmp = new File(file.getPath() + ".tmp");
+    final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+    final IOException[] failure = new IOException[1];
+    try {
+      handled.forEach(new LongLongMap.Visitor() {
+        public void visit(long key, long value) {
+          try {
+            if (failure[0] == null) {
+              out.writeLong(key);
+              out.writeLong(value);
+            }
+          } catch (IOException e) {
+            failure[0] = e;
+          }
+        }
+      });
+    } finally {
+      out.close();
+    }
+    if (failure[0] != null) {
+      tmp.delete();
+      throw failure[0];
+    }
+    replace(tmp, file);
+    records = handled.size();
+  }
+
+  private static void replace(File tmp, File target) throws IOException {
+    if (!tmp.renameTo(target)) {
+      // renameTo doesn't replace an existing file on every platform
+      if (!target.delete() || !tmp.renameTo(target)) throw new IOException("Cannot replace " + target + " with " + tmp);
+    }
+  }
+
+}
@@ -3,23 +3,31 @@ package org.jenkinsci.plugins.jenkinsreviewbot.util;
 import org.jenkinsci.plugins.jenkinsreviewbot.ReviewboardConnection;
 import org.jenkinsci.plugins.jenkinsreviewbot.ReviewboardOps;
 
+import java.util.Collections;
 import java.util.Date;
+import java.util.Map;
 
 /**
  * User: ymeymann
  * Date: 10/2/2014 7:00 PM
  */
 public class Review {
+  private final long id;
   private final String url;
   private final Date lastUpdate;
   private final ReviewboardOps.ReviewItem input;
 
-  public Review(String url, Date lastUpdate, ReviewboardOps.ReviewItem input) {
+  public Review(long id, String url, Date lastUpdate, ReviewboardOps.ReviewItem input) {
+    this.id = id;
     this.url = url;
     this.lastUpdate = lastUpdate;
     this.input = input;
   }
 
+  public long getId() {
+    return id;
+  }
+
   public String getUrl() {
     return url;
   }
@@ -33,16 +41,52 @@ public class Review {
   }
 
   public Slim trim() {
-    return new Slim(url, lastUpdate);
+    return new Slim(id, url, lastUpdate);
+  }
+
+  /**
+   * @param diffRevision revision of the latest diff
+   * @param properties build variables describing the review request
+   */
+  public Slim trim(int diffRevision, Map<String, String> properties) {
+    return new Slim(id, url, lastUpdate, diffRevision, properties);
   }
 
   public static class Slim {
+    private final long id;
     private final String url;
     private final Date lastUpdate;
+    private final int diffRevision;
+    private final Map<String, String> properties;
+
+    public Slim(long id, String url, Date lastUpdate) {
+      this(id, url, lastUpdate, 0, null);
+    }
 
-    public Slim(String url, Date lastUpdate) {
+    public Slim(long id, String url, Date lastUpdate, int diffRevision, Map<String, String> properties) {
+      this.id = id;
       this.url = url;
       this.lastUpdate = lastUpdate;
+      this.diffRevision = diffRevision;
+      this.properties = properties == null ? null : Collections.unmodifiableMap(properties);
+    }
+
+    public long getId() {
+      return id;
+    }
+
+    /**
+     * @return revision of the latest diff, 0 if unknown
+     */
+    public int getDiffRevision() {
+      return diffRevision;
+    }
+
+    /**
+     * @return build variables describing the review request, null if unknown
+     */
+    public Map<String, String> getProperties() {
+      return properties;
     }
 
     public String getUrl() {
@@ -0,0 +1,93 @@
+package org.jenkinsci.plugins.jenkinsreviewbot.util;
+
+/**
+ * Limits how often something may happen, to a steady rate with room for short bursts.
+ * <p>
+ * The bucket holds up to <code>burst</code> tokens and refills at <code>rate</code> tokens per second; every
+ * request takes one. A request that finds the bucket empty still takes its token, driving the balance negative,
+ * and is told how long to wait for it, so waiting callers are served in the order they came. A caller that cannot
+ * wait that long may say so, and then leaves the bucket as it was.
+ */
+public class TokenBucket {
+
+  private double perMs;
+  private double capacity;
+  private double tokens;
+  private long last;
+  private long granted = 0;
+  private long delayed = 0;
+
+  /**
+   * @param rate tokens per second; zero or less means unlimited
+   * @param burst most tokens that can be saved up
+   */
+  public TokenBucket(double rate, int burst) {
+    configure(rate, burst);
+    this.tokens = capacity;
+    this.last = 0;
+  }
+
+  public synchronized void configure(double rate, int burst) {
+    this.perMs = Math.max(0, rate) / 1000;
+    this.capacity = Math.max(1, burst);
+    this.tokens = Math.min(tokens, capacity);
+  }
+
+  public synchronized boolean isUnlimited() {
+    return perMs <= 0;
+  }
+
+  /**
+   * Takes a token.
+   * @return ms the caller has to wait before using it
+   */
+  public long reserve(long now) {
+    return reserve(now, Long.MAX_VALUE);
+  }
+
+  /**
+   * Takes a token, unless the caller would have to wait longer than it can.
+   * @param maxWait most ms the caller can wait
+   * @return ms the caller has to wait before using the token, or -1 if no token was taken
+   */
+  public synchronized long reserve(long now, long maxWait) {
+    if (perMs <= 0) {
+      granted++;
+      return 0;
+    }
+    if (last == 0) last = now;
+    tokens = Math.min(capacity, tokens + (now - last) * perMs);
+    last = Math.max(last, now);
+    long wait = tokens >= 1 ? 0 : (long) Math.ceil((1 - tokens) / perMs);
+    if (wait > maxWait) return -1;
+    granted++;
+    tokens -= 1;
+    if (wait > 0) delayed++;
+    return wait;
+  }
+
+  /**
+   * Takes a token, sleeping until it can be used.
+   */
+  public void acquire() throws InterruptedException {
+    acquire(Long.MAX_VALUE);
+  }
+
+  /**
+   * Takes a token and sleeps until it can be used, unless that would take longer than <code>maxWait</code>.
+   * @return whether a token was taken
+   */
+  public boolean acquire(long maxWait) throws InterruptedException {
+    long wait = reserve(System.currentTimeMillis(), maxWait);
+    if (wait > 0) Thread.sleep(wait);
+    return wait >= 0;
+  }
+
+  @Override
+  public synchronized String toString() {
+    if (perMs <= 0) return "unlimited, " + granted + " requests";
+    return String.format("%.1f/s, burst %d, %d requests, %d delayed",
+        perMs * 1000, (int) capacity, granted, delayed);
+  }
+
+}
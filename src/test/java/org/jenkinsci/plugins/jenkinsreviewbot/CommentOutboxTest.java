@@ -0,0 +1,104 @@
+package org.jenkinsci.plugins.jenkinsreviewbot;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class CommentOutboxTest {
+
+  private File dir;
+  private CommentOutbox outbox;
+  private final List<String> posted = new CopyOnWriteArrayList<String>();
+  private final AtomicInteger failuresLeft = new AtomicInteger();
+
+  private final CommentOutbox.Poster poster = new CommentOutbox.Poster() {
+    public int post(String url, String msg, boolean shipIt, boolean markdown, String dedupeKey) throws IOException {
+      if (failuresLeft.getAndDecrement() > 0) throw new IOException("Reviewboard is down");
+      posted.add(url + ": " + msg);
+      return 200;
+    }
+  };
+
+  @Before
+  public void setUp() throws IOException {
+    dir = File.createTempFile("outbox", "");
+    dir.delete();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    if (outbox != null) outbox.shutdown();
+    FileUtils.deleteDirectory(dir);
+  }
+
+  private void awaitEmpty() throws InterruptedException {
+    for (int i = 0; i < 100 && outbox.size() > 0; i++) Thread.sleep(50);
+    assertEquals(0, outbox.size());
+  }
+
+  @Test
+  public void testCoalescesCommentsForSameReview() throws Exception {
+    outbox = new CommentOutbox(dir, poster, 2, 10);
+    outbox.enqueue("https://rb/r/1/", "job A passed", false, false);
+    outbox.enqueue("https://rb/r/1/", "job B passed", false, false);
+    outbox.enqueue("https://rb/r/2/", "job A failed", false, false);
+    awaitEmpty();
+    assertEquals(2, posted.size());
+    assertTrue(posted.contains("https://rb/r/1/: job A passed\n\njob B passed"));
+    assertEquals(0, dir.list().length);
+  }
+
+  @Test
+  public void testRetriesUntilDelivered() throws Exception {
+    failuresLeft.set(3);
+    outbox = new CommentOutbox(dir, poster, 1, 10);
+    outbox.enqueue("https://rb/r/1/", "job A passed", true, false);
+    awaitEmpty();
+    assertEquals(1, posted.size());
+  }
+
+  @Test
+  public void testRetryPostsTheSameBatch() throws Exception {
+    final List<String> attempts = new CopyOnWriteArrayList<String>();
+    CommentOutbox.Poster recording = new CommentOutbox.Poster() {
+      public int post(String url, String msg, boolean shipIt, boolean markdown, String dedupeKey)
+              throws IOException {
+        attempts.add(dedupeKey + " " + msg);
+        return poster.post(url, msg, shipIt, markdown, dedupeKey);
+      }
+    };
+    failuresLeft.set(1);
+    outbox = new CommentOutbox(dir, recording, 1, 500);
+    outbox.enqueue("https://rb/r/1/", "job A passed", false, false);
+    for (int i = 0; i < 100 && attempts.isEmpty(); i++) Thread.sleep(50);
+    outbox.enqueue("https://rb/r/1/", "job B passed", false, false);
+    awaitEmpty();
+    assertEquals(3, attempts.size());
+    assertEquals("retried as it was", attempts.get(0), attempts.get(1));
+    assertEquals(2, posted.size());
+    assertEquals("https://rb/r/1/: job A passed", posted.get(0));
+    assertEquals("https://rb/r/1/: job B passed", posted.get(1));
+  }
+
+  @Test
+  public void testSurvivesRestart() throws Exception {
+    failuresLeft.set(Integer.MAX_VALUE);
+    outbox = new CommentOutbox(dir, poster, 1, 60 * 1000);
+    outbox.enqueue("https://rb/r/1/", "job A passed", false, true);
+    outbox.shutdown();
+    failuresLeft.set(0);
+    outbox = new CommentOutbox(dir, poster, 1, 10);
+    outbox.load();
+    awaitEmpty();
+    assertEquals("https://rb/r/1/: job A passed", posted.get(0));
+  }
+}
@@ -9,7 +9,7 @@ import java.io.IOException;
 import java.util.Map;
 
 import static junit.framework.Assert.assertEquals;
-import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertTrue;
 
 /**
  * User: ymeymann
@@ -47,7 +47,7 @@ public class ConnectionTest {
   @Test
   public void testDiff() throws Exception {
     ReviewboardOps.DiffHandle diff = ReviewboardOps.getInstance().getDiff(con, "https://reviewboard.eng.vmware.com/r/475848/");
-    try { assertNotNull(diff.getString()); } finally { diff.close(); }
+    try { assertTrue(diff.size() > 0); } finally { diff.close(); }
   }
 
   @Test
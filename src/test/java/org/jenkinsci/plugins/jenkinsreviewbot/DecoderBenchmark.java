@@ -0,0 +1,53 @@
+package org.jenkinsci.plugins.jenkinsreviewbot;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+
+/**
+ * Compares JAXB and streaming decoding of the sample Reviewboard responses.
+ * Run with: mvn test -Dtest=DecoderBenchmark -Dreviewbot.benchmark=true
+ */
+public class DecoderBenchmark {
+
+  private static final int WARMUP = 2000;
+  private static final int ITERATIONS = 10000;
+
+  @Test
+  public void benchmark() throws Exception {
+    Assume.assumeTrue(Boolean.getBoolean("reviewbot.benchmark"));
+    run("review-requests.xml", ReviewboardOps.ReviewsResponse.class);
+    run("review-request.xml", ReviewboardOps.ReviewRequest.class);
+    run("diffs.xml", ReviewboardOps.Response.class);
+    run("reviews.xml", ReviewboardOps.Response.class);
+  }
+
+  private static void run(String resource, Class<?> clazz) throws Exception {
+    byte[] payload = load(resource);
+    for (ResponseDecoder decoder : new ResponseDecoder[] { ResponseDecoder.JAXB, ResponseDecoder.STREAMING }) {
+      for (int i = 0; i < WARMUP; i++) decoder.decode(new ByteArrayInputStream(payload), clazz);
+      long start = System.nanoTime();
+      for (int i = 0; i < ITERATIONS; i++) decoder.decode(new ByteArrayInputStream(payload), clazz);
+      long micros = (System.nanoTime() - start) / 1000 / ITERATIONS;
+      System.out.println(String.format("%-20s %6d bytes  %-24s %6d us/op",
+          resource, payload.length, decoder.getClass().getSimpleName(), micros));
+    }
+  }
+
+  private static byte[] load(String resource) throws Exception {
+    InputStream in = DecoderBenchmark.class.getResourceAsStream(resource);
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buf = new byte[8192];
+      int n;
+      while ((n = in.read(buf)) > 0) out.write(buf, 0, n);
+      return out.toByteArray();
+    } finally {
+      in.close();
+    }
+  }
+
+}
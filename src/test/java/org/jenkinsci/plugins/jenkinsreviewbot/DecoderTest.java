@@ -0,0 +1,88 @@
+package org.jenkinsci.plugins.jenkinsreviewbot;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Both decoders must read the same values from the sample Reviewboard responses.
+ */
+public class DecoderTest {
+
+  private static final ResponseDecoder[] decoders = { ResponseDecoder.JAXB, ResponseDecoder.STREAMING };
+
+  static <T> T decode(ResponseDecoder decoder, String resource, Class<T> clazz) throws IOException {
+    InputStream in = DecoderTest.class.getResourceAsStream(resource);
+    try {
+      return decoder.decode(in, clazz);
+    } finally {
+      in.close();
+    }
+  }
+
+  @Test
+  public void testDiffs() throws Exception {
+    for (ResponseDecoder decoder : decoders) {
+      ReviewboardOps.Response d = decode(decoder, "diffs.xml", ReviewboardOps.Response.class);
+      assertEquals(3, d.count);
+      assertEquals(3, d.diffs.array.size());
+      assertEquals(ReviewboardOps.MyDateAdapter.parse("2015-04-23T10:13:00Z"), d.diffs.array.get(d.count - 1).timestamp);
+      assertNull(d.reviews);
+    }
+  }
+
+  @Test
+  public void testReviews() throws Exception {
+    for (ResponseDecoder decoder : decoders) {
+      ReviewboardOps.Response c = decode(decoder, "reviews.xml", ReviewboardOps.Response.class);
+      assertEquals(3, c.reviews.array.size());
+      assertEquals("jenkins", c.reviews.array.get(1).links.user.title);
+      assertEquals(ReviewboardOps.MyDateAdapter.parse("2015-04-23T09:30:00Z"), c.reviews.array.get(1).timestamp);
+    }
+  }
+
+  @Test
+  public void testRepositories() throws Exception {
+    for (ResponseDecoder decoder : decoders) {
+      ReviewboardOps.Response r = decode(decoder, "repositories.xml", ReviewboardOps.Response.class);
+      assertEquals(3, r.count);
+      assertEquals("itfm-cloud", r.repositories.array.get(1).name);
+      assertEquals(4, r.repositories.array.get(1).id);
+      assertEquals("https://reviewboard.example.com/api/repositories/?start=3&max-results=3", r.links.next.href);
+    }
+  }
+
+  @Test
+  public void testPendingReviews() throws Exception {
+    for (ResponseDecoder decoder : decoders) {
+      ReviewboardOps.ReviewsResponse r = decode(decoder, "review-requests.xml", ReviewboardOps.ReviewsResponse.class);
+      assertEquals("40", r.total);
+      assertEquals("ok", r.stat);
+      assertEquals(40, r.requests.array.size());
+      assertNull(r.links.next);
+      ReviewboardOps.ReviewItem item = r.requests.array.get(1);
+      assertEquals(474101L, item.id);
+      assertEquals("master", item.branch);
+      assertEquals("itfm-cloud", item.links.repository.title);
+      assertEquals("jdoe", item.links.submitter.title);
+      assertEquals(ReviewboardOps.MyDateAdapter.parse("2015-04-24T12:58:10Z"), item.lastUpdated);
+    }
+  }
+
+  @Test
+  public void testReviewRequest() throws Exception {
+    for (ResponseDecoder decoder : decoders) {
+      ReviewboardOps.ReviewRequest r = decode(decoder, "review-request.xml", ReviewboardOps.ReviewRequest.class);
+      assertEquals(475848L, r.request.id);
+      assertEquals("origin/master", r.request.branch);
+      assertEquals("itfm-cloud", r.request.links.repository.title);
+      assertEquals("ymeymann", r.request.links.submitter.title);
+      assertEquals(ReviewboardOps.MyDateAdapter.parse("2015-04-24T12:59:10Z"), r.request.lastUpdated);
+    }
+  }
+
+}
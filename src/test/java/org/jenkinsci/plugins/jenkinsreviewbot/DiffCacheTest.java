@@ -0,0 +1,152 @@
+package org.jenkinsci.plugins.jenkinsreviewbot;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class DiffCacheTest {
+
+  private File root;
+  private DiffCache cache;
+
+  @Before
+  public void setUp() throws IOException {
+    root = File.createTempFile("diffs", "");
+    root.delete();
+    cache = new DiffCache(root);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    FileUtils.deleteDirectory(root);
+  }
+
+  private static DiffCache.Loader content(final String diff, final AtomicInteger downloads) {
+    return new DiffCache.Loader() {
+      public void download(OutputStream out) throws IOException {
+        downloads.incrementAndGet();
+        out.write(diff.getBytes("UTF-8"));
+      }
+    };
+  }
+
+  @Test
+  public void testHitAvoidsDownload() throws IOException {
+    AtomicInteger downloads = new AtomicInteger();
+    File first = cache.get("r/1/diffs/1/", content("diff 1", downloads)).getFile();
+    File second = cache.get("r/1/diffs/1/", content("diff 1", downloads)).getFile();
+    assertEquals(1, downloads.get());
+    assertEquals(first, second);
+    assertEquals("diff 1", FileUtils.readFileToString(second));
+  }
+
+  @Test
+  public void testSameContentIsStoredOnce() throws IOException {
+    AtomicInteger downloads = new AtomicInteger();
+    File a = cache.get("r/1/diffs/1/", content("same", downloads)).getFile();
+    File b = cache.get("r/2/diffs/3/", content("same", downloads)).getFile();
+    assertEquals(2, downloads.get());
+    assertEquals(a, b);
+    assertEquals(1, new File(root, "blobs").listFiles().length);
+  }
+
+  @Test
+  public void testConcurrentRequestsShareOneDownload() throws Exception {
+    final AtomicInteger downloads = new AtomicInteger();
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final DiffCache.Loader slow = new DiffCache.Loader() {
+      public void download(OutputStream out) throws IOException {
+        downloads.incrementAndGet();
+        started.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          throw new IOException(e.toString());
+        }
+        out.write("slow".getBytes("UTF-8"));
+      }
+    };
+    ExecutorService pool = Executors.newFixedThreadPool(4);
+    try {
+      Callable<File> get = new Callable<File>() {
+        public File call() throws IOException {
+          return cache.get("r/5/diffs/2/", slow).getFile();
+        }
+      };
+      Future<File> first = pool.submit(get);
+      started.await();
+      Future<File> second = pool.submit(get);
+      Future<File> third = pool.submit(get);
+      Thread.sleep(100);
+      release.countDown();
+      assertEquals(first.get(), second.get());
+      assertEquals(first.get(), third.get());
+      assertEquals(1, downloads.get());
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testLeastRecentlyUsedIsEvictedBeyondMaxSize() throws IOException {
+    cache.setLimits(1, 7);
+    AtomicInteger downloads = new AtomicInteger();
+    StringBuilder big = new StringBuilder();
+    for (int i = 0; i < 400 * 1024; i++) big.append('x');
+    DiffCache.Entry entry = cache.get("a", content(big + "a", downloads));
+    File a = entry.getFile();
+    entry.close();
+    // recency is tracked by modification time, so make "a" clearly the least recently used
+    new File(root, "keys").listFiles()[0].setLastModified(System.currentTimeMillis() - 10000);
+    cache.get("b", content(big + "b", downloads)).close();
+    cache.get("c", content(big + "c", downloads)).close();
+    assertFalse(a.exists());
+    assertEquals(2, new File(root, "keys").listFiles().length);
+    cache.get("a", content(big + "a", downloads));
+    assertEquals(4, downloads.get());
+  }
+
+  @Test
+  public void testDiffLargerThanCacheIsNotCached() throws IOException {
+    cache.setLimits(1, 7);
+    AtomicInteger downloads = new AtomicInteger();
+    StringBuilder huge = new StringBuilder();
+    for (int i = 0; i < 1536 * 1024; i++) huge.append('x');
+    DiffCache.Entry entry = cache.get("huge", content(huge.toString(), downloads));
+    assertFalse(entry.isCached());
+    assertEquals(huge.length(), entry.getFile().length());
+    assertEquals(0, new File(root, "keys").listFiles().length);
+    entry.close();
+    assertFalse(entry.getFile().exists());
+    cache.get("huge", content(huge.toString(), downloads)).close();
+    assertEquals(2, downloads.get());
+  }
+
+  @Test
+  public void testOpenEntryIsNotEvicted() throws IOException {
+    cache.setLimits(1, 7);
+    AtomicInteger downloads = new AtomicInteger();
+    StringBuilder big = new StringBuilder();
+    for (int i = 0; i < 400 * 1024; i++) big.append('x');
+    DiffCache.Entry a = cache.get("a", content(big + "a", downloads));
+    new File(root, "keys").listFiles()[0].setLastModified(System.currentTimeMillis() - 10000);
+    cache.get("b", content(big + "b", downloads)).close();
+    cache.get("c", content(big + "c", downloads)).close();
+    assertTrue("still being read", a.getFile().exists());
+    assertEquals(big + "a", FileUtils.readFileToString(a.getFile()));
+    a.close();
+    cache.evict();
+    assertFalse(a.getFile().exists());
+  }
+
+}
@@ -0,0 +1,27 @@
+package org.jenkinsci.plugins.jenkinsreviewbot;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RequestGuardTest {
+
+  @Test
+  public void testTokenWaitIsBoundedByDeadline() throws Exception {
+    RequestGuard guard = new RequestGuard("https://rb/", new RequestGuard.Settings(0.5, 0, 1, 5, 0, 60000));
+    guard.before(false, System.currentTimeMillis() + 100);
+    guard.after(false, 1);
+    long start = System.currentTimeMillis();
+    try {
+      guard.before(false, System.currentTimeMillis() + 100);
+      fail("the next read slot is two seconds away");
+    } catch (RequestPolicy.DeadlineExceededException e) {
+      // expected
+    }
+    assertTrue("failed without waiting", System.currentTimeMillis() - start < 100);
+    assertTrue("no token was taken", guard.toString().contains("1 requests, 0 delayed"));
+    // writes have their own bucket
+    guard.before(true, System.currentTimeMillis() + 100);
+  }
+
+}
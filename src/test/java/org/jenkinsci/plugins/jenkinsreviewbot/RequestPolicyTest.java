@@ -0,0 +1,151 @@
+package org.jenkinsci.plugins.jenkinsreviewbot;
+
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.junit.Test;
+
+import javax.net.ssl.SSLHandshakeException;
+import java.io.IOException;
+import java.net.UnknownHostException;
+import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class RequestPolicyTest {
+
+  // answers with the queued status codes, -1 meaning an I/O error
+  private final LinkedList<Integer> answers = new LinkedList<Integer>();
+  private final AtomicInteger sent = new AtomicInteger();
+
+  private final ReviewboardSession session =
+      new ReviewboardSession(new ReviewboardConnection("https://rb/", "jenkins", "secret"), new HttpClient()) {
+        @Override
+        int execute(HttpMethod method, long deadline) throws IOException {
+          sent.incrementAndGet();
+          Integer status;
+          synchronized (answers) {
+            status = answers.isEmpty() ? 200 : answers.removeFirst();
+          }
+          if (status < 0) throw new IOException("connection reset");
+          ((Answered) method).status = status;
+          return status;
+        }
+      };
+
+  private final RequestPolicy policy = new RequestPolicy(new RequestPolicy.Settings(3, 1, 0, 0, 0));
+
+  private static class Answered extends GetMethod {
+    int status;
+    @Override
+    public int getStatusCode() {
+      return status;
+    }
+  }
+
+  private final RequestPolicy.Request get = new RequestPolicy.Request() {
+    public HttpMethod create() {
+      return new Answered();
+    }
+  };
+
+  @Test
+  public void testReadRetriesTransientFailures() throws Exception {
+    answers.add(-1);
+    answers.add(503);
+    assertEquals(200, policy.read(session, "reviews", get).getStatusCode());
+    assertEquals(3, sent.get());
+    assertEquals(3, policy.getHistory().size());
+
+    answers.add(404);
+    assertEquals("not retried", 404, policy.read(session, "reviews", get).getStatusCode());
+    assertEquals(4, sent.get());
+
+    answers.add(500);
+    answers.add(500);
+    answers.add(500);
+    assertEquals("out of attempts", 500, policy.read(session, "reviews", get).getStatusCode());
+    assertEquals(7, sent.get());
+  }
+
+  @Test
+  public void testWriteRetriedOnlyWithVerifier() throws Exception {
+    answers.add(502);
+    assertEquals(502, policy.write(session, "reviews", get, null));
+    assertEquals(1, sent.get());
+
+    final AtomicInteger checks = new AtomicInteger();
+    RequestPolicy.Verifier notThere = new RequestPolicy.Verifier() {
+      public boolean delivered() {
+        checks.incrementAndGet();
+        return false;
+      }
+    };
+    answers.add(-1);
+    assertEquals(200, policy.write(session, "reviews", get, notThere));
+    assertEquals(3, sent.get());
+    assertEquals(1, checks.get());
+
+    RequestPolicy.Verifier there = new RequestPolicy.Verifier() {
+      public boolean delivered() {
+        return true;
+      }
+    };
+    answers.add(504);
+    assertEquals("posted after all", 200, policy.write(session, "reviews", get, there));
+    assertEquals(4, sent.get());
+  }
+
+  @Test
+  public void testPermanentErrorsNotRetried() {
+    assertTrue(RequestPolicy.isTransient(new IOException("connection reset")));
+    assertFalse(RequestPolicy.isTransient(new UnknownHostException("rb")));
+    assertFalse(RequestPolicy.isTransient(new SSLHandshakeException("certificate expired")));
+    assertFalse(RequestPolicy.isTransient(new RequestPolicy.DeadlineExceededException("late")));
+  }
+
+  @Test
+  public void testFailingVerifier() throws Exception {
+    RequestPolicy.Verifier broken = new RequestPolicy.Verifier() {
+      public boolean delivered() {
+        throw new RuntimeException("bad answer");
+      }
+    };
+    answers.add(-1);
+    try {
+      policy.write(session, "reviews", get, broken);
+      fail();
+    } catch (IOException e) {
+      assertTrue(e.getCause() instanceof RuntimeException);
+    }
+    assertEquals("not sent again", 1, sent.get());
+  }
+
+  @Test
+  public void testHedgedRead() throws Exception {
+    RequestPolicy hedging = new RequestPolicy(new RequestPolicy.Settings(1, 1, 0, 0, 50));
+    final AtomicInteger calls = new AtomicInteger();
+    ReviewboardSession slowFirst =
+        new ReviewboardSession(new ReviewboardConnection("https://rb/", "jenkins", "secret"), new HttpClient()) {
+          @Override
+          int execute(HttpMethod method, long deadline) throws IOException {
+            if (calls.incrementAndGet() == 1) {
+              try {
+                Thread.sleep(2000);
+              } catch (InterruptedException e) {
+                throw new IOException(e);
+              }
+            }
+            ((Answered) method).status = 200;
+            return 200;
+          }
+        };
+    long start = System.currentTimeMillis();
+    assertEquals(200, hedging.read(slowFirst, "reviews", get).getStatusCode());
+    assertTrue(System.currentTimeMillis() - start < 1500);
+    assertEquals(2, calls.get());
+    assertTrue(hedging.toString().contains("1 hedged (1 won by the hedge)"));
+  }
+
+}
@@ -0,0 +1,52 @@
+package org.jenkinsci.plugins.jenkinsreviewbot;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class ResponseCacheTest {
+
+  @Test
+  public void testLeastRecentlyUsedIsEvicted() {
+    ResponseCache cache = new ResponseCache(2);
+    cache.put("a", "\"1\"", null, "A");
+    cache.put("b", "\"2\"", null, "B");
+    assertNotNull(cache.get("a", String.class));
+    cache.put("c", null, "Fri, 24 Apr 2015 10:00:00 GMT", "C");
+    assertEquals(2, cache.size());
+    assertNotNull(cache.get("a", String.class));
+    assertNull(cache.get("b", String.class));
+    assertEquals("Fri, 24 Apr 2015 10:00:00 GMT", cache.get("c", String.class).lastModified);
+  }
+
+  @Test
+  public void testResponsesWithoutValidatorsAreNotKept() {
+    ResponseCache cache = new ResponseCache(10);
+    cache.put("a", "\"1\"", null, "A");
+    cache.put("a", null, null, "A2");
+    assertNull(cache.get("a", String.class));
+    assertEquals(2, cache.getMisses());
+  }
+
+  @Test
+  public void testWrongTypeIsAMiss() {
+    ResponseCache cache = new ResponseCache(10);
+    cache.put("a", "\"1\"", null, "A");
+    assertNull(cache.get("a", Integer.class));
+  }
+
+  @Test
+  public void testShrinkAndDisable() {
+    ResponseCache cache = new ResponseCache(10);
+    for (int i = 0; i < 10; i++) cache.put("u" + i, "\"" + i + "\"", null, i);
+    cache.setMaxSize(3);
+    assertEquals(3, cache.size());
+    assertNotNull(cache.get("u9", Integer.class));
+    cache.setMaxSize(0);
+    cache.put("x", "\"x\"", null, "X");
+    assertEquals(0, cache.size());
+  }
+
+}
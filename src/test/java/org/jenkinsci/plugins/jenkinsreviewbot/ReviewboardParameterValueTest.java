@@ -0,0 +1,57 @@
+package org.jenkinsci.plugins.jenkinsreviewbot;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ReviewboardParameterValueTest {
+
+  @Test
+  public void testFailedPropertiesLookupIsNotRepeated() throws Exception {
+    final AtomicInteger lookups = new AtomicInteger();
+    ReviewboardParameterValue value = new ReviewboardParameterValue("review.url", "https://rb/r/1/", 1, null) {
+      @Override
+      Map<String, String> lookUpProperties() throws IOException {
+        lookups.incrementAndGet();
+        throw new IOException("Reviewboard is down");
+      }
+    };
+    assertEquals(Collections.emptyMap(), value.getProps(null));
+    long start = System.currentTimeMillis();
+    assertEquals(Collections.emptyMap(), value.getProps(null));
+    assertTrue("answered without waiting", System.currentTimeMillis() - start < 1000);
+    assertEquals(1, lookups.get());
+  }
+
+  @Test
+  public void testPropertiesAreLookedUpOnce() throws Exception {
+    final AtomicInteger lookups = new AtomicInteger();
+    ReviewboardParameterValue value = new ReviewboardParameterValue("review.url", "https://rb/r/1/", 1, null) {
+      @Override
+      Map<String, String> lookUpProperties() {
+        lookups.incrementAndGet();
+        return Collections.singletonMap("REVIEW_USER", "alice");
+      }
+    };
+    assertEquals("alice", value.getProps(null).get("REVIEW_USER"));
+    assertEquals("alice", value.getProps(null).get("REVIEW_USER"));
+    assertEquals(1, lookups.get());
+  }
+
+  @Test
+  public void testSameDiff() {
+    ReviewboardParameterValue polled = new ReviewboardParameterValue("review.url", "https://rb/r/1/", 3, null);
+    assertTrue(polled.isSameDiff(new ReviewboardParameterValue("review.url", "https://rb/r/1/", 3, null)));
+    assertTrue("latest revision", polled.isSameDiff(new ReviewboardParameterValue("review.url", "https://rb/r/1/")));
+    assertTrue(new ReviewboardParameterValue("review.url", "https://rb/r/1/").isSameDiff(polled));
+    assertFalse(polled.isSameDiff(new ReviewboardParameterValue("review.url", "https://rb/r/1/", 2, null)));
+    assertFalse(polled.isSameDiff(new ReviewboardParameterValue("review.url", "https://rb/r/2/", 3, null)));
+    assertFalse(polled.isSameDiff(null));
+  }
+
+}
@@ -0,0 +1,50 @@
+package org.jenkinsci.plugins.jenkinsreviewbot;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ReviewboardWebHookTest {
+
+  private static final byte[] BODY = "{\"event\": \"review_request_published\"}".getBytes();
+  private static final String SIGNATURE = "sha1=2de9b00fba45cffb5d4ff87eb7267ae956fefd99";
+
+  @Test
+  public void testValidSignature() {
+    assertTrue(ReviewboardWebHook.verifySignature(BODY, SIGNATURE, "secret"));
+    assertTrue(ReviewboardWebHook.verifySignature(BODY, SIGNATURE.toUpperCase().replace("SHA1=", "sha1="), "secret"));
+  }
+
+  @Test
+  public void testInvalidSignature() {
+    assertFalse(ReviewboardWebHook.verifySignature(BODY, SIGNATURE, "other"));
+    assertFalse(ReviewboardWebHook.verifySignature("{}".getBytes(), SIGNATURE, "secret"));
+    assertFalse(ReviewboardWebHook.verifySignature(BODY, null, "secret"));
+    assertFalse(ReviewboardWebHook.verifySignature(BODY, "2de9b00fba45cffb5d4ff87eb7267ae956fefd99", "secret"));
+  }
+
+  @Test
+  public void testSentTo() throws Exception {
+    ReviewboardWebHook.Event event = new ReviewboardWebHook.Event("review_request_published", 7, 1, null);
+    event.targetPeople.add("alice");
+    event.targetGroups.add("ci");
+    ReviewboardRoute.Groups groups = new ReviewboardRoute.Groups() {
+      public boolean isMember(String group, String user) {
+        return group.equals("ci") && user.equals("jenkins");
+      }
+    };
+    assertTrue(event.isSentTo("alice", groups));
+    assertTrue("through a target group", event.isSentTo("jenkins", groups));
+    assertFalse(event.isSentTo("bob", groups));
+  }
+
+  @Test
+  public void testRepositoryId() {
+    assertEquals(42, ReviewboardConnection.repositoryId("https://reviewboard.example.com/api/repositories/42/"));
+    assertEquals(-1, ReviewboardConnection.repositoryId("https://reviewboard.example.com/api/users/jenkins/"));
+    assertEquals(-1, ReviewboardConnection.repositoryId(null));
+  }
+
+}
@@ -0,0 +1,98 @@
+package org.jenkinsci.plugins.jenkinsreviewbot;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class SpillBufferTest {
+
+  private static byte[] content(int size) {
+    byte[] bytes = new byte[size];
+    for (int i = 0; i < size; i++) bytes[i] = (byte) (i * 31);
+    return bytes;
+  }
+
+  private static byte[] read(SpillBuffer buffer) throws Exception {
+    InputStream in = buffer.getInputStream();
+    try {
+      return IOUtils.toByteArray(in);
+    } finally {
+      in.close();
+    }
+  }
+
+  private static byte[] bytes(ByteBuffer view) {
+    byte[] bytes = new byte[view.remaining()];
+    view.get(bytes);
+    return bytes;
+  }
+
+  @Test
+  public void testContentUpToThresholdStaysInMemory() throws Exception {
+    byte[] diff = content(20000);
+    SpillBuffer buffer = new SpillBuffer(diff.length);
+    try {
+      buffer.readFrom(new ByteArrayInputStream(diff));
+      assertFalse(buffer.isSpilled());
+      assertNull(buffer.getFile());
+      assertEquals(diff.length, buffer.size());
+      assertTrue(Arrays.equals(diff, read(buffer)));
+      assertTrue(Arrays.equals(diff, bytes(buffer.map())));
+    } finally {
+      buffer.close();
+    }
+  }
+
+  @Test
+  public void testContentOverThresholdIsSpilled() throws Exception {
+    byte[] diff = content(20001);
+    SpillBuffer buffer = new SpillBuffer(diff.length - 1);
+    File file;
+    try {
+      buffer.readFrom(new ByteArrayInputStream(diff));
+      assertTrue(buffer.isSpilled());
+      file = buffer.getFile();
+      assertEquals(diff.length, file.length());
+      assertEquals(diff.length, buffer.size());
+      assertTrue(Arrays.equals(diff, read(buffer)));
+      assertTrue("read again", Arrays.equals(diff, read(buffer)));
+      assertTrue(Arrays.equals(diff, bytes(buffer.map())));
+      FileChannel channel = buffer.getChannel();
+      ByteBuffer all = ByteBuffer.allocate(diff.length);
+      while (all.hasRemaining() && channel.read(all) >= 0) { }
+      all.flip();
+      assertTrue(Arrays.equals(diff, bytes(all)));
+    } finally {
+      buffer.close();
+    }
+    assertFalse("deleted on close", file.exists());
+    assertNull(buffer.getFile());
+  }
+
+  @Test
+  public void testChannelSpillsMemoryContent() throws Exception {
+    byte[] diff = content(100);
+    SpillBuffer buffer = new SpillBuffer(SpillBuffer.DEFAULT_THRESHOLD);
+    File file;
+    try {
+      buffer.readFrom(new ByteArrayInputStream(diff));
+      assertFalse(buffer.isSpilled());
+      assertEquals(diff.length, buffer.getChannel().size());
+      file = buffer.getFile();
+      assertTrue(file.exists());
+      assertTrue(Arrays.equals(diff, read(buffer)));
+    } finally {
+      buffer.close();
+    }
+    assertFalse("deleted on close", file.exists());
+  }
+
+}
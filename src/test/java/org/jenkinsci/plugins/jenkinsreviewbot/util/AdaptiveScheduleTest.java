@@ -0,0 +1,45 @@
+package org.jenkinsci.plugins.jenkinsreviewbot.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class AdaptiveScheduleTest {
+
+  private static final long MIN = 60 * 1000L;
+
+  @Test
+  public void testBackoffAndBurst() {
+    AdaptiveSchedule schedule = new AdaptiveSchedule(MIN, 8 * MIN);
+    assertTrue(schedule.isDue(0));
+    schedule.polled(false, 0);
+    assertEquals(2 * MIN, schedule.getInterval());
+    assertFalse(schedule.isDue(MIN));
+    assertTrue(schedule.isDue(2 * MIN));
+    schedule.polled(false, 2 * MIN);
+    schedule.polled(false, 6 * MIN);
+    schedule.polled(false, 14 * MIN);
+    assertEquals("capped at the ceiling", 8 * MIN, schedule.getInterval());
+    schedule.polled(true, 22 * MIN);
+    assertEquals("back to the floor", MIN, schedule.getInterval());
+    assertTrue(schedule.isDue(23 * MIN));
+    assertTrue(schedule.getHitRate() > 0);
+  }
+
+  @Test
+  public void testFixedInterval() {
+    AdaptiveSchedule schedule = new AdaptiveSchedule(5 * MIN, 0);
+    schedule.polled(false, 0);
+    assertEquals(5 * MIN, schedule.getInterval());
+  }
+
+  @Test
+  public void testLoweredCeiling() {
+    AdaptiveSchedule schedule = new AdaptiveSchedule(MIN, 16 * MIN);
+    for (int i = 0; i < 5; i++) schedule.polled(false, 0);
+    assertEquals(16 * MIN, schedule.getInterval());
+    schedule.setLimits(MIN, 4 * MIN);
+    assertEquals(4 * MIN, schedule.getInterval());
+    assertTrue(schedule.isDue(4 * MIN));
+  }
+}
@@ -0,0 +1,68 @@
+package org.jenkinsci.plugins.jenkinsreviewbot.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CircuitBreakerTest {
+
+  @Test
+  public void testOpensAndProbes() {
+    CircuitBreaker breaker = new CircuitBreaker(3, 0, 1000);
+    breaker.onFailure(0);
+    breaker.onFailure(0);
+    breaker.onSuccess(10, 0);
+    breaker.onFailure(0);
+    breaker.onFailure(0);
+    assertTrue("a success resets the count", breaker.allowRequest(0));
+    breaker.onFailure(0);
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    assertFalse(breaker.allowRequest(999));
+    assertTrue("probe", breaker.allowRequest(1000));
+    assertFalse("one probe at a time", breaker.allowRequest(1000));
+    breaker.onFailure(1000);
+    assertFalse(breaker.allowRequest(1500));
+    assertTrue(breaker.allowRequest(2000));
+    breaker.onSuccess(10, 2000);
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+  }
+
+  @Test
+  public void testAbandonedCallsDoNotCount() {
+    CircuitBreaker breaker = new CircuitBreaker(2, 0, 1000);
+    for (int i = 0; i < 5; i++) {
+      assertTrue(breaker.allowRequest(0));
+      breaker.onAbandoned();
+    }
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    breaker.onFailure(0);
+    breaker.onFailure(0);
+    assertTrue("probe", breaker.allowRequest(1000));
+    breaker.onAbandoned();
+    assertTrue("the abandoned probe is replaced", breaker.allowRequest(1000));
+    assertFalse(breaker.allowRequest(1000));
+  }
+
+  @Test
+  public void testSlowCallsAndDisabled() {
+    CircuitBreaker breaker = new CircuitBreaker(2, 100, 1000);
+    breaker.onSuccess(500, 0);
+    breaker.onSuccess(500, 0);
+    assertFalse(breaker.allowRequest(0));
+    breaker.configure(0, 100, 1000);
+    assertTrue(breaker.allowRequest(0));
+    breaker.onFailure(0);
+    assertEquals("disabled", breaker.toString());
+  }
+
+  @Test
+  public void testTokenBucket() {
+    TokenBucket bucket = new TokenBucket(10, 2);
+    assertEquals(0, bucket.reserve(1000));
+    assertEquals(0, bucket.reserve(1000));
+    assertEquals(100, bucket.reserve(1000));
+    assertEquals("waiting callers queue up", 200, bucket.reserve(1000));
+    assertEquals(0, new TokenBucket(0, 1).reserve(1000));
+  }
+
+}
@@ -0,0 +1,164 @@
+package org.jenkinsci.plugins.jenkinsreviewbot.util;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Date;
+
+import static org.junit.Assert.*;
+
+public class ProcessedReviewsTest {
+
+  private File dir;
+
+  @Before
+  public void setUp() throws IOException {
+    dir = File.createTempFile("processed", "");
+    dir.delete();
+    dir.mkdirs();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    FileUtils.deleteDirectory(dir);
+  }
+
+  private ProcessedReviews open() throws IOException {
+    return new ProcessedReviews(new File(dir, ProcessedReviews.FILE_NAME));
+  }
+
+  @Test
+  public void testClaimOnlyNewerDiffs() throws IOException {
+    ProcessedReviews store = open();
+    assertTrue(store.claim(42, new Date(1000)));
+    assertFalse(store.claim(42, new Date(1000)));
+    assertFalse(store.claim(42, new Date(500)));
+    assertTrue(store.isNew(42, new Date(2000)));
+    assertTrue(store.claim(42, new Date(2000)));
+    assertTrue(store.isNew(43, new Date(1)));
+  }
+
+  @Test
+  public void testReleasedClaimIsNewAgain() throws IOException {
+    ProcessedReviews store = open();
+    assertTrue(store.claim(42, new Date(1000)));
+    store.release(42, new Date(1000));
+    assertTrue(store.isNew(42, new Date(1000)));
+    assertFalse("older diffs stay handled", store.isNew(42, new Date(999)));
+    assertTrue(store.claim(42, new Date(1000)));
+    store.release(42, new Date(500));
+    assertFalse("only the claim itself is released", store.isNew(42, new Date(1000)));
+  }
+
+  @Test
+  public void testReload() throws IOException {
+    ProcessedReviews store = open();
+    store.claim(1, new Date(100));
+    store.claim(2, new Date(200));
+    store.claim(1, new Date(300));
+    store.advanceWatermark(new Date(5000));
+    store.advanceWatermark(new Date(4000));
+    ProcessedReviews reloaded = open();
+    assertEquals(2, reloaded.size());
+    assertFalse(reloaded.isNew(1, new Date(300)));
+    assertFalse(reloaded.isNew(2, new Date(200)));
+    assertEquals(new Date(5000), reloaded.getWatermark());
+  }
+
+  @Test
+  public void testCompaction() throws IOException {
+    ProcessedReviews store = open();
+    for (int i = 1; i <= 3000; i++) store.claim(i % 10, new Date(i));
+    File file = new File(dir, ProcessedReviews.FILE_NAME);
+    assertTrue(file.length() < 3000 * 16);
+    store.compact();
+    assertEquals(10 * 16, file.length());
+    ProcessedReviews reloaded = open();
+    assertEquals(10, reloaded.size());
+    assertFalse(reloaded.isNew(0, new Date(3000)));
+  }
+
+  @Test
+  public void testIncompleteRecordIsDropped() throws IOException {
+    ProcessedReviews store = open();
+    store.claim(7, new Date(70));
+    store.claim(8, new Date(80));
+    File file = new File(dir, ProcessedReviews.FILE_NAME);
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    raf.setLength(file.length() - 3);
+    raf.close();
+    ProcessedReviews reloaded = open();
+    assertEquals(1, reloaded.size());
+    assertTrue(reloaded.isNew(8, new Date(80)));
+    assertEquals(16, file.length());
+  }
+
+  @Test
+  public void testOldWatermarkIsMigrated() throws IOException {
+    File old = new File(dir, "reviewbot-watermark");
+    FileOutputStream out = new FileOutputStream(old);
+    out.write("123456\n".getBytes());
+    out.close();
+    ProcessedReviews store = open();
+    assertEquals(new Date(123456), store.getWatermark());
+    assertFalse(old.exists());
+  }
+
+  @Test
+  public void testExpire() throws IOException {
+    ProcessedReviews store = open();
+    long now = System.currentTimeMillis();
+    long day = 24 * 60 * 60 * 1000L;
+    store.claim(1, new Date(now - 3 * day));
+    store.claim(2, new Date(now - 2 * 60 * 60 * 1000L));
+    store.claim(3, new Date(now));
+    store.advanceWatermark(new Date(now));
+    assertEquals(1, store.expire(new Date(now - 60 * 60 * 1000L)));
+    assertFalse("a day is kept at least", store.isNew(2, new Date(now - 2 * 60 * 60 * 1000L)));
+    assertEquals(0, store.expire(new Date(now - 2 * day)));
+    ProcessedReviews reloaded = open();
+    assertEquals(2, reloaded.size());
+    assertTrue(reloaded.isNew(1, new Date(now - 3 * day)));
+    assertFalse(reloaded.isNew(3, new Date(now)));
+    assertEquals(new Date(now), reloaded.getWatermark());
+  }
+
+  @Test
+  public void testWatermarkRecordIsMigrated() throws IOException {
+    DataOutputStream out = new DataOutputStream(new FileOutputStream(new File(dir, ProcessedReviews.FILE_NAME)));
+    out.writeLong(5);
+    out.writeLong(50);
+    out.writeLong(-1);
+    out.writeLong(7000);
+    out.close();
+    ProcessedReviews store = open();
+    assertEquals(1, store.size());
+    assertEquals(new Date(7000), store.getWatermark());
+    assertEquals(16, new File(dir, ProcessedReviews.FILE_NAME).length());
+    assertEquals(new Date(7000), open().getWatermark());
+  }
+
+  @Test
+  public void testForgottenStoreRejectsUpdates() throws IOException {
+    ProcessedReviews store = ProcessedReviews.forDirectory(dir);
+    store.claim(1, new Date(10));
+    ProcessedReviews.forget(dir);
+    try {
+      store.claim(2, new Date(20));
+      fail("updated a forgotten store");
+    } catch (IOException expected) {
+    }
+    ProcessedReviews again = ProcessedReviews.forDirectory(dir);
+    assertNotSame(store, again);
+    assertFalse(again.isNew(1, new Date(10)));
+    ProcessedReviews.forget(dir);
+  }
+
+}